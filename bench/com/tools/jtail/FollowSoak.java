@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Soak test of follow mode. Appends lines to a number of files at a fixed
+ * rate, while following them in-process with the {@link FileSystemWatcher} or
+ * the {@link PollingWatcher}, the same way jtail -f does.</p>
+ * <p>
+ * Every line contains a sequence number, the time it was appended and its
+ * own length. The output of every file is checked for lost, duplicated,
+ * reordered and corrupted lines, and the time between appending a line and
+ * it being output is reported as percentiles.</p>
+ * <p>
+ * Run with <code>ant soak -Dsoak.args="--files 10 --rate 1000 --seconds 30"
+ * </code>. Other arguments are --polling, --sleep N (seconds, with
+ * --polling), --line-length N and --readers N (0 to read on the watcher
+ * thread). Exits with 1 if any line was lost, duplicated, reordered or
+ * corrupted.</p>
+ *
+ * @author maartenl
+ */
+public class FollowSoak
+{
+
+    /**
+     * Maximum time to wait for the last lines to be output, after appending
+     * has stopped.
+     */
+    private static final long DRAIN_MILLIS = 10000;
+
+    /**
+     * Receives the output of one file, and checks every complete line.
+     */
+    private static class LineChecker extends OutputStream
+    {
+
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        private long expected;
+
+        private long lost;
+
+        private long duplicated;
+
+        private long corrupted;
+
+        private long[] latencies = new long[1024];
+
+        private int received;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len)
+        {
+            for (int i = off; i < off + len; i++)
+            {
+                write(b[i]);
+            }
+        }
+
+        @Override
+        public synchronized void write(int b)
+        {
+            if (b != '\n')
+            {
+                line.write(b);
+                return;
+            }
+            long now = System.nanoTime();
+            String[] fields = new String(line.toByteArray(), StandardCharsets.US_ASCII).split(" ");
+            int length = line.size() + 1;
+            line.reset();
+            long sequence;
+            long appended;
+            try
+            {
+                sequence = Long.parseLong(fields[0]);
+                appended = Long.parseLong(fields[1]);
+                if (Integer.parseInt(fields[2]) != length)
+                {
+                    corrupted++;
+                    return;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex)
+            {
+                corrupted++;
+                return;
+            }
+            if (sequence < expected)
+            {
+                // seen before, either duplicated or arriving out of order
+                duplicated++;
+                return;
+            }
+            lost += sequence - expected;
+            expected = sequence + 1;
+            if (received == latencies.length)
+            {
+                latencies = Arrays.copyOf(latencies, received * 2);
+            }
+            latencies[received++] = now - appended;
+        }
+
+        private synchronized long getExpected()
+        {
+            return expected;
+        }
+    }
+
+    /**
+     * Appends lines to one file at a fixed rate.
+     */
+    private static class Appender extends Thread
+    {
+
+        private final Path file;
+
+        private final long intervalNanos;
+
+        private final int lineLength;
+
+        private final long endNanos;
+
+        private volatile long appended;
+
+        private Appender(Path file, long rate, int lineLength, long endNanos)
+        {
+            super("appender " + file.getFileName());
+            this.file = file;
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+            this.lineLength = lineLength;
+            this.endNanos = endNanos;
+        }
+
+        /**
+         * Creates a line of exactly lineLength bytes (or more, if the numbers
+         * do not fit), including the newline.
+         */
+        private byte[] createLine(long sequence)
+        {
+            String start = sequence + " " + System.nanoTime() + " ";
+            int length = Math.max(lineLength, start.length() + 12);
+            String header = start + length + " ";
+            StringBuilder builder = new StringBuilder(header);
+            while (builder.length() < length - 1)
+            {
+                builder.append('x');
+            }
+            return builder.append('\n').toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public void run()
+        {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+            {
+                long next = System.nanoTime();
+                long sequence = 0;
+                while (next < endNanos)
+                {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0)
+                    {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(createLine(sequence++));
+                    while (buffer.hasRemaining())
+                    {
+                        channel.write(buffer);
+                    }
+                    appended = sequence;
+                    next += intervalNanos;
+                }
+            } catch (IOException | InterruptedException ex)
+            {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /**
+     * Reads the file on the watcher thread, or hands it to the engine.
+     */
+    private static void tail(FollowerEngine engine, Map<FileInfo, TailFile> followers, Map<FileInfo, PrintStream> outputs, FileInfo info) throws IOException
+    {
+        if (engine != null)
+        {
+            engine.eventDetected(info);
+        } else
+        {
+            followers.get(info).tail(new PrintSink(outputs.get(info), false));
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile)
+    {
+        if (sorted.length == 0)
+        {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        int files = 10;
+        long rate = 1000;
+        long seconds = 30;
+        int lineLength = 100;
+        boolean polling = false;
+        String sleep = "1";
+        int readers = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "--files":
+                    files = Integer.parseInt(args[++i]);
+                    break;
+                case "--rate":
+                    rate = Long.parseLong(args[++i]);
+                    break;
+                case "--seconds":
+                    seconds = Long.parseLong(args[++i]);
+                    break;
+                case "--line-length":
+                    lineLength = Integer.parseInt(args[++i]);
+                    break;
+                case "--polling":
+                    polling = true;
+                    break;
+                case "--sleep":
+                    sleep = args[++i];
+                    break;
+                case "--readers":
+                    readers = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        // the PollingWatcher takes its interval from the command line options
+        Options.parse(new String[]
+        {
+            "-s", sleep
+        });
+        System.out.println("Soak: " + files + " files, " + rate + " lines/s per file, " + seconds + "s, "
+                + (polling ? "PollingWatcher, sleep " + sleep + "s" : "FileSystemWatcher") + ", " + readers + " readers");
+
+        Path directory = Files.createTempDirectory("jtail-soak");
+        final Map<FileInfo, TailFile> followers = new HashMap<>();
+        final Map<FileInfo, PrintStream> outputs = new HashMap<>();
+        List<LineChecker> checkers = new ArrayList<>();
+        List<Path> paths = new ArrayList<>();
+        final FollowerEngine engine = readers == 0 ? null : new FollowerEngine(readers)
+        {
+
+            @Override
+            protected void tail(FileInfo info, PrintStream out) throws IOException
+            {
+                followers.get(info).tail(new PrintSink(out, false));
+            }
+
+            @Override
+            protected void write(FileInfo info, byte[] bytes, int length)
+            {
+                outputs.get(info).write(bytes, 0, length);
+            }
+
+            @Override
+            protected void written(FileInfo info, long position)
+            {
+            }
+
+            @Override
+            protected void idle()
+            {
+            }
+        };
+        Watcher watcher = polling ? new PollingWatcher()
+        {
+
+            @Override
+            public void eventDetected(FileInfo info) throws IOException
+            {
+                tail(engine, followers, outputs, info);
+            }
+
+            @Override
+            public void idle()
+            {
+            }
+
+            @Override
+            public void discovered(FileInfo info)
+            {
+            }
+        } : new FileSystemWatcher()
+        {
+
+            @Override
+            public void eventDetected(FileInfo info) throws IOException
+            {
+                tail(engine, followers, outputs, info);
+            }
+
+            @Override
+            public void idle()
+            {
+            }
+
+            @Override
+            public void discovered(FileInfo info)
+            {
+            }
+        };
+        for (int i = 0; i < files; i++)
+        {
+            Path file = Files.createFile(directory.resolve("soak" + i + ".log"));
+            paths.add(file);
+            FileInfo info = new FileInfo(file.toString());
+            LineChecker checker = new LineChecker();
+            checkers.add(checker);
+            followers.put(info, TailFileFactory.createFollower(info, null));
+            outputs.put(info, new PrintStream(checker, false));
+            watcher.watch(info);
+        }
+        final Watcher startable = watcher;
+        Thread watching = new Thread("watcher")
+        {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    startable.startWatching();
+                } catch (IOException ex)
+                {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        watching.setDaemon(true);
+        watching.start();
+        // give the watch service time to register
+        Thread.sleep(500);
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Appender> appenders = new ArrayList<>();
+        for (Path path : paths)
+        {
+            Appender appender = new Appender(path, rate, lineLength, end);
+            appenders.add(appender);
+            appender.start();
+        }
+        for (Appender appender : appenders)
+        {
+            appender.join();
+        }
+        long drainEnd = System.currentTimeMillis() + DRAIN_MILLIS;
+        boolean drained = false;
+        while (!drained && System.currentTimeMillis() < drainEnd)
+        {
+            drained = true;
+            for (int i = 0; i < files; i++)
+            {
+                drained &= checkers.get(i).getExpected() >= appenders.get(i).appended;
+            }
+            Thread.sleep(10);
+        }
+
+        long appended = 0;
+        long received = 0;
+        long lost = 0;
+        long duplicated = 0;
+        long corrupted = 0;
+        long[] latencies = new long[0];
+        for (int i = 0; i < files; i++)
+        {
+            LineChecker checker = checkers.get(i);
+            synchronized (checker)
+            {
+                appended += appenders.get(i).appended;
+                received += checker.received;
+                // lines never output at all count as lost as well
+                lost += checker.lost + appenders.get(i).appended - checker.expected;
+                duplicated += checker.duplicated;
+                corrupted += checker.corrupted;
+                int offset = latencies.length;
+                latencies = Arrays.copyOf(latencies, offset + checker.received);
+                System.arraycopy(checker.latencies, 0, latencies, offset, checker.received);
+            }
+        }
+        Arrays.sort(latencies);
+        System.out.println("appended " + appended + ", received " + received + ", lost " + lost
+                + ", duplicated/reordered " + duplicated + ", corrupted " + corrupted);
+        System.out.printf("append-to-output latency: p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n",
+                percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6,
+                percentile(latencies, 99.9) / 1e6, percentile(latencies, 100) / 1e6);
+        for (Path path : paths)
+        {
+            Files.delete(path);
+        }
+        Files.delete(directory);
+        System.exit(lost + duplicated + corrupted == 0 ? 0 : 1);
+    }
+}
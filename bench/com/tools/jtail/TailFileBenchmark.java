@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Benchmarks every TailFile that the {@link TailFileFactory} creates, on
+ * generated files, writing to /dev/null through the same
+ * {@link BufferedOutput} jtail uses for standard output.</p>
+ * <p>
+ * Run with <code>ant bench</code>, which adds the GC profiler to report the
+ * allocations per operation. Parameters can be overridden, for example
+ * <code>ant bench -Dbench.args="-p fileSize=4G"</code>.</p>
+ *
+ * @author maartenl
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TailFileBenchmark
+{
+
+    /**
+     * Size of the generated file, with an optional K, M or G suffix.
+     */
+    @Param(
+            {
+                "1M", "64M", "1G"
+            })
+    public String fileSize;
+
+    /**
+     * Average length of a line in bytes, including the newline.
+     */
+    @Param(
+            {
+                "20", "200"
+            })
+    public int lineLength;
+
+    /**
+     * The number of lines requested, or for -c, the number of lines worth of
+     * bytes.
+     */
+    @Param(
+            {
+                "10", "10000"
+            })
+    public long count;
+
+    private String filename;
+
+    private long lines;
+
+    private FileChannel devNull;
+
+    private BufferedOutput out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        long size = parseSize(fileSize);
+        Path directory = Paths.get(System.getProperty("java.io.tmpdir"), "jtail-bench");
+        Files.createDirectories(directory);
+        Path file = directory.resolve("bench-" + fileSize + "-" + lineLength + ".log");
+        filename = file.toString();
+        lines = generate(file, size, lineLength);
+        devNull = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+        out = new BufferedOutput(devNull, BufferedOutput.Flush.IDLE, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        out.idle();
+        devNull.close();
+    }
+
+    /**
+     * Jtail's Options are not used for this, as JMH brings its own version of
+     * jopt-simple.
+     */
+    private static long parseSize(String size)
+    {
+        String units = "KMG";
+        int unit = units.indexOf(size.charAt(size.length() - 1));
+        if (unit == -1)
+        {
+            return Long.parseLong(size);
+        }
+        return Long.parseLong(size.substring(0, size.length() - 1)) << (10 * (unit + 1));
+    }
+
+    /**
+     * Writes a file of lines with random lengths around the average, unless
+     * it was already generated by an earlier run.
+     *
+     * @return the number of lines in the file
+     */
+    private static long generate(Path file, long size, int lineLength) throws IOException
+    {
+        Random random = new Random(size ^ lineLength);
+        byte[] line = new byte[lineLength * 2];
+        Arrays.fill(line, (byte) 'x');
+        long lines = 0;
+        long written = 0;
+        boolean exists = Files.exists(file) && Files.size(file) == size;
+        try (OutputStream output = exists ? null : new BufferedOutputStream(Files.newOutputStream(file), 1 << 20))
+        {
+            while (written < size)
+            {
+                int length = (int) Math.min(size - written, 1 + random.nextInt(lineLength * 2 - 1));
+                if (output != null)
+                {
+                    line[length - 1] = '\n';
+                    output.write(line, 0, length);
+                    line[length - 1] = 'x';
+                }
+                written += length;
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private void tail(Long bytes, Long lines, boolean fromBeginning) throws IOException
+    {
+        try (FileInfo info = new FileInfo(filename))
+        {
+            TailFileFactory.createTailFile(info, bytes, lines, fromBeginning, null, null).tail(new PrintSink(out, false));
+            out.eventDone();
+        }
+    }
+
+    /**
+     * jtail -c K, where K is count lines worth of bytes.
+     */
+    @Benchmark
+    public void bytesFromEnd() throws IOException
+    {
+        tail(count * lineLength, null, false);
+    }
+
+    /**
+     * jtail -n K.
+     */
+    @Benchmark
+    public void linesFromEnd() throws IOException
+    {
+        tail(null, count, false);
+    }
+
+    /**
+     * jtail -n +K, with K such that count lines are output, which means
+     * skipping almost the entire file.
+     */
+    @Benchmark
+    public void linesFromBeginning() throws IOException
+    {
+        tail(null, Math.max(1, lines - count + 1), true);
+    }
+}
@@ -0,0 +1,4 @@
+package com.tools.jtail.jmh_generated;
+public class TailFileBenchmark_jmhType extends TailFileBenchmark_jmhType_B3 {
+}
+
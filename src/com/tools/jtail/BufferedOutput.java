@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * The output stage. Everything printed is collected in one large, reusable
+ * buffer, and written to the channel (usually standard output) according to
+ * the flush policy. Whatever the policy, the buffer is flushed when it is full
+ * and when jtail becomes idle, i.e. has nothing more to read for the
+ * moment.</p>
+ * <img src="../../../images/BufferedOutput.png"/>
+ *
+ * @startuml
+ * class java.io.PrintStream
+ * java.io.PrintStream <|-- BufferedOutput
+ * BufferedOutput --> java.nio.channels.WritableByteChannel
+ * BufferedOutput : +BufferedOutput(channel: WritableByteChannel, flush: Flush, threshold: long)
+ * BufferedOutput : +transferFrom(channel: FileChannel, position: long, end: long): long
+ * BufferedOutput : +eventDone()
+ * BufferedOutput : +idle()
+ * BufferedOutput : +setTrace(trace: LatencyTrace)
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class BufferedOutput extends PrintStream
+{
+
+    private static final Logger logger = Logger.getLogger(BufferedOutput.class.getName());
+
+    /**
+     * Buffer size of 256k.
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * When to write the buffered output.
+     */
+    public enum Flush
+    {
+
+        /**
+         * After every change of a file has been output. Lowest latency.
+         */
+        EVENT,
+        /**
+         * When at least the threshold number of bytes have been buffered.
+         */
+        BYTES,
+        /**
+         * When the oldest buffered byte is at least the threshold number of
+         * milliseconds old.
+         */
+        MILLIS,
+        /**
+         * Only when there is nothing more to read. Best for high volumes.
+         */
+        IDLE
+    }
+
+    /**
+     * Does the actual buffering. PrintStream hands all bytes to this stream
+     * immediately, after encoding them.
+     */
+    private static class Buffer extends OutputStream
+    {
+
+        private final WritableByteChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private final Flush flush;
+
+        private final long threshold;
+
+        /**
+         * Time in milliseconds the buffer went from empty to non-empty.
+         */
+        private long oldest;
+
+        /**
+         * Told about every flush, null if not tracing.
+         */
+        private volatile LatencyTrace trace;
+
+        private Buffer(WritableByteChannel channel, Flush flush, long threshold)
+        {
+            this.channel = channel;
+            this.flush = flush;
+            this.threshold = threshold;
+        }
+
+        private static long now()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        }
+
+        /**
+         * Makes room for at least one byte, and remembers when the first byte
+         * was buffered.
+         */
+        private void prepare() throws IOException
+        {
+            if (!buffer.hasRemaining())
+            {
+                flush();
+            }
+            if (buffer.position() == 0)
+            {
+                oldest = now();
+            }
+        }
+
+        /**
+         * Flushes if the policy says so, after bytes have been buffered.
+         */
+        private void written() throws IOException
+        {
+            switch (flush)
+            {
+                case BYTES:
+                    if (buffer.position() >= threshold)
+                    {
+                        flush();
+                    }
+                    break;
+                case MILLIS:
+                    if (now() - oldest >= threshold)
+                    {
+                        flush();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            prepare();
+            buffer.put((byte) b);
+            written();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                prepare();
+                int length = Math.min(len, buffer.remaining());
+                buffer.put(b, off, length);
+                off += length;
+                len -= length;
+            }
+            written();
+        }
+
+        private long transferFrom(FileChannel source, long position, long end) throws IOException
+        {
+            if (end - position >= BUFFER_SIZE / 2)
+            {
+                // large enough to be worth the direct copy by the operating
+                // system, without passing through the buffer
+                flush();
+                while (position < end)
+                {
+                    long transferred = source.transferTo(position, end - position, channel);
+                    if (transferred <= 0)
+                    {
+                        break;
+                    }
+                    position += transferred;
+                }
+                return position;
+            }
+            while (position < end)
+            {
+                prepare();
+                if (buffer.remaining() > end - position)
+                {
+                    buffer.limit(buffer.position() + (int) (end - position));
+                }
+                int read = source.read(buffer, position);
+                buffer.limit(buffer.capacity());
+                if (read <= 0)
+                {
+                    break;
+                }
+                position += read;
+            }
+            written();
+            return position;
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            buffer.flip();
+            if (buffer.hasRemaining())
+            {
+                logger.log(Level.FINEST, "flushing {0} bytes", buffer.remaining());
+            }
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            buffer.clear();
+            LatencyTrace current = trace;
+            if (current != null)
+            {
+                current.flushed();
+            }
+        }
+    }
+
+    private final Buffer buffer;
+
+    /**
+     * Creates the output stage.
+     *
+     * @param channel where to write to, for example standard output
+     * @param flush the flush policy
+     * @param threshold number of bytes in case of {@link Flush#BYTES}, number
+     * of milliseconds in case of {@link Flush#MILLIS}, otherwise ignored.
+     */
+    public BufferedOutput(WritableByteChannel channel, Flush flush, long threshold)
+    {
+        this(new Buffer(channel, flush, threshold));
+    }
+
+    private BufferedOutput(Buffer buffer)
+    {
+        super(buffer, false);
+        this.buffer = buffer;
+    }
+
+    /**
+     * Copies the bytes from position up until end of the file to the output,
+     * without decoding them. Large ranges bypass the buffer, so the operating
+     * system can copy them directly.
+     *
+     * @param channel the file to read from
+     * @param position the position to start at
+     * @param end the position to stop at
+     * @return the position up until where the file was copied
+     * @throws IOException if the reading or writing fails
+     */
+    public synchronized long transferFrom(FileChannel channel, long position, long end) throws IOException
+    {
+        return buffer.transferFrom(channel, position, end);
+    }
+
+    /**
+     * Traces the latency of changes up until they are flushed.
+     *
+     * @param trace the trace, null to stop tracing
+     */
+    public void setTrace(LatencyTrace trace)
+    {
+        buffer.trace = trace;
+    }
+
+    /**
+     * To be called after the change of a file has been output.
+     *
+     * @throws IOException if the writing fails
+     */
+    public synchronized void eventDone() throws IOException
+    {
+        if (buffer.flush == Flush.EVENT)
+        {
+            buffer.flush();
+        }
+    }
+
+    /**
+     * To be called when there is nothing more to read for the moment, and
+     * jtail is about to wait for changes. Always flushes.
+     *
+     * @throws IOException if the writing fails
+     */
+    public synchronized void idle() throws IOException
+    {
+        buffer.flush();
+    }
+}
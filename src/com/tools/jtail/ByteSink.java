@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Receives what is tailed from files, as ranges of bytes. Implemented by
+ * {@link PrintSink} to write to a PrintStream, like the command line does,
+ * and by {@link LineSplitter} to receive lines instead.</p>
+ * <p>
+ * All methods are called on the thread that tails the file, and for one
+ * file never at the same time.</p>
+ * <img src="../../../images/ByteSink.png"/>
+ *
+ * @startuml
+ * interface ByteSink
+ * ByteSink : +begin(info: FileInfo)
+ * ByteSink : +bytes(info: FileInfo, offset: long, bytes: ByteBuffer)
+ * ByteSink : +replaced(info: FileInfo)
+ * ByteSink : +truncated(info: FileInfo)
+ * ByteSink <|-- PrintSink
+ * ByteSink <|-- LineSplitter
+ * TailFile --> ByteSink
+ * @enduml
+ *
+ * @author maartenl
+ */
+public interface ByteSink
+{
+
+    /**
+     * Called every time a file is tailed, before any of its bytes.
+     *
+     * @param info the file
+     * @throws IOException if the sink fails
+     */
+    public void begin(FileInfo info) throws IOException;
+
+    /**
+     * Bytes of a file, in order. The buffer is only valid during the call,
+     * as it is reused afterwards, so it should be copied if required.
+     *
+     * @param info the file
+     * @param offset the position in the file of the first byte. If the file
+     * is converted from another encoding, the position of the input the bytes
+     * were converted from.
+     * @param bytes the bytes, from position to limit
+     * @throws IOException if the sink fails
+     */
+    public void bytes(FileInfo info, long offset, ByteBuffer bytes) throws IOException;
+
+    /**
+     * The file has been replaced by a new one with the same name, usually
+     * because it was rotated. All bytes of the old file have been received,
+     * the bytes that follow are from the new file, starting at offset 0.
+     *
+     * @param info the file
+     * @throws IOException if the sink fails
+     */
+    public void replaced(FileInfo info) throws IOException;
+
+    /**
+     * The file has been truncated. The bytes that follow start at offset 0
+     * again.
+     *
+     * @param info the file
+     * @throws IOException if the sink fails
+     */
+    public void truncated(FileInfo info) throws IOException;
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Registry of how far every followed file has been output, so jtail can
+ * continue where it left off after a restart. Every line of the registry
+ * contains the position, the file key and the absolute path of a file,
+ * separated by tabs.</p>
+ * <p>
+ * The registry is written to a temporary file, which is synced to disk and
+ * then atomically renamed to the registry, so it is never half written. This
+ * happens at most once every {@link #SAVE_INTERVAL} milliseconds, and only if
+ * a position changed. Positions are only passed on once they have been
+ * written, and the output must be flushed before calling {@link #save() }, so
+ * a saved position is never ahead of the output. After a crash, some lines
+ * might be output again, but none are lost.</p>
+ * <img src="../../../images/Checkpoint.png"/>
+ *
+ * @startuml
+ * Checkpoint : +Checkpoint(registry: Path)
+ * Checkpoint : +getPosition(info: FileInfo): Long
+ * Checkpoint : +written(info: FileInfo, position: long)
+ * Checkpoint : +isDue(): boolean
+ * Checkpoint : +save()
+ * Checkpoint --> "*" FileInfo
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class Checkpoint
+{
+
+    private static final Logger logger = Logger.getLogger(Checkpoint.class.getName());
+
+    /**
+     * Minimum number of milliseconds between two saves.
+     */
+    public static final long SAVE_INTERVAL = 1000l;
+
+    /**
+     * Used instead of the file key, if the platform does not provide one.
+     */
+    private static final String NO_FILE_KEY = "-";
+
+    private final Path registry;
+
+    /**
+     * The contents of the registry, by absolute path. Contains files saved
+     * by earlier runs as well, even if they are not tailed now.
+     */
+    private final Map<Path, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * A position changed since the last save.
+     */
+    private boolean changed;
+
+    private long lastSave;
+
+    private static class Entry
+    {
+
+        private final long position;
+
+        private final String fileKey;
+
+        private Entry(long position, String fileKey)
+        {
+            this.position = position;
+            this.fileKey = fileKey;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Entry))
+            {
+                return false;
+            }
+            Entry other = (Entry) obj;
+            return position == other.position && fileKey.equals(other.fileKey);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(position, fileKey);
+        }
+    }
+
+    /**
+     * Reads the registry, if it exists.
+     *
+     * @param registry the file to keep the positions in
+     * @throws IOException if the registry exists, but could not be read
+     */
+    public Checkpoint(Path registry) throws IOException
+    {
+        this.registry = registry;
+        lastSave = now();
+        try (BufferedReader reader = Files.newBufferedReader(registry, StandardCharsets.UTF_8))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t", 3);
+                if (fields.length != 3)
+                {
+                    logger.log(Level.INFO, "Ignoring line {0} of {1}.", new Object[]
+                    {
+                        line, registry
+                    });
+                    continue;
+                }
+                entries.put(Paths.get(fields[2]), new Entry(Long.parseLong(fields[0]), fields[1]));
+            }
+        } catch (NoSuchFileException ex)
+        {
+            logger.log(Level.FINE, "No checkpoint {0} yet.", registry);
+        }
+    }
+
+    private static long now()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static Path key(FileInfo info)
+    {
+        return info.getFile().toAbsolutePath().normalize();
+    }
+
+    private static String fileKey(FileInfo info)
+    {
+        return info.getFileKey() == null ? NO_FILE_KEY : info.getFileKey().toString();
+    }
+
+    /**
+     * Where to continue with a file, according to the registry. If the file
+     * has been replaced or truncated since, it is output from the start, as
+     * all of it was written while jtail was not running.
+     *
+     * @param info the file, as it is now
+     * @return the saved position, 0 if the registry no longer applies to the
+     * file, or null if the file is not in the registry.
+     */
+    public Long getPosition(FileInfo info)
+    {
+        Entry entry = entries.get(key(info));
+        if (entry == null)
+        {
+            return null;
+        }
+        if (!entry.fileKey.equals(fileKey(info)) || entry.position > info.getSize())
+        {
+            logger.log(Level.FINE, "{0} replaced or truncated since checkpoint, starting at 0.", info.getFilename());
+            return 0l;
+        }
+        return entry.position;
+    }
+
+    /**
+     * Records how far a file has been written to the output.
+     *
+     * @param info the file
+     * @param position the position up until where it has been written
+     */
+    public void written(FileInfo info, long position)
+    {
+        Entry entry = new Entry(position, fileKey(info));
+        changed |= !entry.equals(entries.put(key(info), entry));
+    }
+
+    /**
+     * Indicates that the last save was long enough ago to save again.
+     *
+     * @return true if {@link #SAVE_INTERVAL} has passed
+     */
+    public boolean isDue()
+    {
+        return now() - lastSave >= SAVE_INTERVAL;
+    }
+
+    /**
+     * Writes the positions to the registry, if any of them changed. The
+     * output must have been flushed.
+     *
+     * @throws IOException if the registry could not be written
+     */
+    public void save() throws IOException
+    {
+        lastSave = now();
+        if (!changed)
+        {
+            return;
+        }
+        StringBuilder contents = new StringBuilder();
+        for (Map.Entry<Path, Entry> entry : entries.entrySet())
+        {
+            contents.append(entry.getValue().position).append('\t')
+                    .append(entry.getValue().fileKey).append('\t')
+                    .append(entry.getKey()).append('\n');
+        }
+        Path temporary = registry.resolveSibling(registry.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(contents.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, registry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+        changed = false;
+        logger.log(Level.FINEST, "saved checkpoint of {0} files", entries.size());
+    }
+
+    /**
+     * Syncs the directory, so the rename survives a crash as well. Not every
+     * platform allows opening a directory, in which case it is skipped.
+     */
+    private void syncDirectory()
+    {
+        Path directory = registry.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ))
+        {
+            channel.force(true);
+        } catch (IOException ex)
+        {
+            logger.log(Level.FINEST, "could not sync directory " + directory, ex);
+        }
+    }
+}
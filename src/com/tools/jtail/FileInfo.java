@@ -16,10 +16,19 @@
  */
 package com.tools.jtail;
 
-import java.io.File;
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A fairly simple data object, with some additional file operations.
@@ -31,45 +40,181 @@ import java.nio.file.Paths;
  * FileInfo : -file: Path
  * FileInfo : -position: long
  * FileInfo : +FileInfo(filename: String)
- * FileInfo : +getSize(): Long 
+ * FileInfo : +refresh()
+ * FileInfo : +getSize(): long 
+ * FileInfo : +getLastModified(): FileTime 
+ * FileInfo : +getFileKey(): Object 
  * FileInfo : +getDirectory(): Path 
  * FileInfo : +getPosition(): long 
  * FileInfo : +setPosition(position: long)
  * FileInfo : +getFile(): Path 
  * FileInfo : +getFilename(): String 
+ * FileInfo : +getChannel(): FileChannel
+ * FileInfo : +getLineIndex(): LineIndex
+ * FileInfo : +setLineIndex(lineIndex: LineIndex)
+ * FileInfo : +getGzipIndex(): GzipIndex
+ * FileInfo : +setGzipIndex(gzipIndex: GzipIndex)
+ * FileInfo : +isGzip(): boolean
+ * FileInfo : +getStatistics(): FileStatistics
+ * FileInfo : +isReplaced(): boolean
+ * FileInfo : +isChanged(): boolean
+ * FileInfo : +reopen(read: long)
+ * FileInfo : +takeOver(followed: Iterable<FileInfo>): boolean
+ * FileInfo : +close()
+ * FileInfo : +{static} getStatCalls(): long
  * @enduml
  * @author maartenl
  */
-public class FileInfo
+public class FileInfo implements Closeable
 {
 
+    /**
+     * Number of times the attributes of a file have been requested from the
+     * filesystem, for all files combined.
+     */
+    private static final AtomicLong statCalls = new AtomicLong();
+
     private final String filename;
     
     private final Path file;
     
-    private long position;
+    /**
+     * Volatile, like the other mutable fields, as a file is read by a reader
+     * thread of the {@link FollowerEngine}, while the watcher checks it.
+     */
+    private volatile long position;
+
+    /**
+     * The open file, kept open for as long as we are tailing it. Null if not
+     * (yet) opened.
+     */
+    private volatile FileChannel channel;
+
+    /**
+     * Identifies the file the channel was opened on, for example device and
+     * inode. Might be null if the platform does not support it.
+     */
+    private volatile Object fileKey;
+
+    /**
+     * The file key of the file that was open before the last
+     * {@link #reopen(long) }, null if never reopened.
+     */
+    private volatile Object previousFileKey;
+
+    /**
+     * Up to where the file that was open before the last
+     * {@link #reopen(long) } had been read.
+     */
+    private volatile long previousPosition;
+
+    /**
+     * The attributes of the file, as they were the last time
+     * {@link #refresh() } was called.
+     */
+    private volatile BasicFileAttributes attributes;
+
+    /**
+     * Index of the line offsets of the file, null if not used.
+     */
+    private LineIndex lineIndex;
+
+    /**
+     * Index of the access points of a gzip file, null if not used.
+     */
+    private GzipIndex gzipIndex;
+
+    /**
+     * What happened to the file so far.
+     */
+    private final FileStatistics statistics = new FileStatistics(this);
+
+    /**
+     * Whether the file starts with the gzip magic number, null if not
+     * checked yet.
+     */
+    private volatile Boolean gzip;
 
     public FileInfo(String filename) throws IOException
     {
         this.filename = filename;
         file = Paths.get(filename);
         // validation
-        File myFile = file.toFile();
-        if (!myFile.exists())
+        try
+        {
+            refresh();
+        } catch (NoSuchFileException ex)
         {
-            throw new IOException("File " + filename + " does not exist.");
+            throw new IOException("File " + filename + " does not exist.", ex);
         }
         position = 0;
     }
 
-    public Long getSize()
+    /**
+     * Takes a new snapshot of the attributes of the file. Is meant to be
+     * called once per event or polling iteration, so everything that happens
+     * because of that event uses the same size, last modified time and file
+     * key, without asking the filesystem again.
+     *
+     * @throws IOException if the attributes could not be read, for example
+     * because the file does not exist (anymore).
+     */
+    public void refresh() throws IOException
+    {
+        statCalls.incrementAndGet();
+        attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+    /**
+     * The size of the file at the last {@link #refresh() }.
+     *
+     * @return the size in bytes
+     */
+    public long getSize()
+    {
+        return attributes.size();
+    }
+
+    /**
+     * The modification time of the file at the last {@link #refresh() }.
+     *
+     * @return the time last modified
+     */
+    public FileTime getLastModified()
+    {
+        return attributes.lastModifiedTime();
+    }
+
+    /**
+     * Identifies the file with the filename, at the last {@link #refresh() }.
+     *
+     * @return the file key, or null if the platform does not provide one.
+     * @see BasicFileAttributes#fileKey()
+     */
+    public Object getFileKey()
+    {
+        return attributes.fileKey();
+    }
+
+    /**
+     * Number of times the attributes of files have been retrieved from the
+     * filesystem since starting.
+     *
+     * @return total number of stat calls of all files
+     */
+    public static long getStatCalls()
     {
-        return file.toFile().length();
+        return statCalls.get();
     }
 
+    /**
+     * The directory containing the file.
+     *
+     * @return absolute path of the directory.
+     */
     public Path getDirectory()
     {
-        return file.getParent();
+        return file.toAbsolutePath().normalize().getParent();
     }
 
     /**
@@ -108,4 +253,193 @@ public class FileInfo
     {
         return filename;
     }
+
+    /**
+     * Returns the channel to read the file with. The channel is opened the
+     * first time, and kept open until {@link #reopen(long) } or
+     * {@link #close() }.
+     *
+     * @return the channel, positioned wherever the last reader left it. Use
+     * {@link #getPosition() } for reading.
+     * @throws IOException if the file could not be opened
+     */
+    public FileChannel getChannel() throws IOException
+    {
+        if (channel == null)
+        {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            refresh();
+            fileKey = getFileKey();
+        }
+        return channel;
+    }
+
+    /**
+     * The index of the line offsets of the file, kept for as long as the file
+     * is tailed. It follows the filename, so after {@link #reopen(long) } it
+     * will find out that it no longer matches, and rebuild itself.
+     *
+     * @return the index, or null if no index is used
+     */
+    public LineIndex getLineIndex()
+    {
+        return lineIndex;
+    }
+
+    public void setLineIndex(LineIndex lineIndex)
+    {
+        this.lineIndex = lineIndex;
+    }
+
+    /**
+     * The index of the access points of the file, if it is a gzip file.
+     *
+     * @return the index, or null if no index is used
+     */
+    public GzipIndex getGzipIndex()
+    {
+        return gzipIndex;
+    }
+
+    public void setGzipIndex(GzipIndex gzipIndex)
+    {
+        this.gzipIndex = gzipIndex;
+    }
+
+    /**
+     * The counters of what happened to the file, while it was tailed.
+     *
+     * @return the statistics, never null
+     */
+    public FileStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * Indicates that the file is compressed with gzip, by its first two
+     * bytes, not its name. Checked once, until {@link #reopen(long) }.
+     *
+     * @return true if the file starts with the gzip magic number
+     * @throws IOException if the file could not be read
+     */
+    public boolean isGzip() throws IOException
+    {
+        if (gzip == null)
+        {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            FileChannel opened = getChannel();
+            while (magic.hasRemaining() && opened.read(magic, magic.position()) > 0)
+            {
+                // until both bytes are read
+            }
+            gzip = magic.get(0) == (byte) 0x1f && magic.get(1) == (byte) 0x8b;
+        }
+        return gzip;
+    }
+
+    /**
+     * Indicates that the filename no longer refers to the file we have open,
+     * which is what happens when a log file is rotated. Uses the attributes of
+     * the last {@link #refresh() }.
+     *
+     * @return true if a different file now exists with the filename.
+     */
+    public boolean isReplaced()
+    {
+        if (channel == null || fileKey == null)
+        {
+            return false;
+        }
+        return !Objects.equals(fileKey, getFileKey());
+    }
+
+    /**
+     * Indicates that there is something to tail, according to the last
+     * {@link #refresh() }. Either the size no longer matches the position, or
+     * the file has been replaced.
+     *
+     * @return true if the file has changed since we last read it.
+     */
+    public boolean isChanged()
+    {
+        return position != getSize() || isReplaced();
+    }
+
+    /**
+     * Closes the channel and opens the file with the filename again, starting
+     * at position 0. Used when the file has been replaced. The replaced file
+     * is remembered, in case it turns up under another name, see
+     * {@link #takeOver(Iterable) }.
+     *
+     * @param read up to where the replaced file has been read
+     * @throws IOException if the file could not be closed or opened
+     */
+    public void reopen(long read) throws IOException
+    {
+        previousPosition = read;
+        previousFileKey = fileKey;
+        close();
+        position = 0;
+        gzip = null;
+        statistics.reopened();
+        getChannel();
+    }
+
+    /**
+     * Prepares following a file found under a new name, which might be a
+     * followed file that was renamed, like app.log becoming app.log.1 when
+     * rotating. Whatever was read of it under its old name is not read again:
+     * the position is set to where that left off.
+     *
+     * @param followed the files followed so far
+     * @return false if one of them still has the file open. It has not
+     * noticed the rename yet, and reads the rest of the file when it does, so
+     * the new name has to wait until then.
+     */
+    public boolean takeOver(Iterable<FileInfo> followed)
+    {
+        Object key = getFileKey();
+        if (key == null)
+        {
+            return true;
+        }
+        for (FileInfo info : followed)
+        {
+            if (key.equals(info.fileKey))
+            {
+                return false;
+            }
+            if (key.equals(info.previousFileKey))
+            {
+                position = info.previousPosition;
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Closes the channel, if open, and writes the index.
+     *
+     * @throws IOException if the closing fails
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (channel != null)
+        {
+            channel.close();
+            channel = null;
+            fileKey = null;
+        }
+        if (lineIndex != null)
+        {
+            lineIndex.close();
+        }
+        if (gzipIndex != null)
+        {
+            gzipIndex.close();
+        }
+    }
 }
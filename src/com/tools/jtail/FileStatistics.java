@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Counts what happens to a followed file. Every {@link FileInfo} has one.
+ * The counters are updated by the watcher and the readers without locking,
+ * so keeping them costs next to nothing, whether anybody looks at them or
+ * not. Every count is added to the totals of {@link Statistics} as well.</p>
+ * <img src="../../../images/FileStatistics.png"/>
+ *
+ * @startuml
+ * FileStatisticsMBean <|-- FileStatistics
+ * FileStatistics : +FileStatistics(info: FileInfo)
+ * FileStatistics : +eventReceived()
+ * FileStatistics : +eventCoalesced()
+ * FileStatistics : +reopened()
+ * FileStatistics : +read(bytes: long, lines: long)
+ * FileStatistics : +tailed(nanos: long)
+ * FileStatistics : +getReadLatency(): LatencyHistogram
+ * FileStatistics --> FileInfo
+ * FileStatistics --> LatencyHistogram
+ * FileInfo --> FileStatistics
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class FileStatistics implements FileStatisticsMBean
+{
+
+    private final FileInfo info;
+
+    private final LongAdder bytesRead = new LongAdder();
+
+    private final LongAdder linesEmitted = new LongAdder();
+
+    private final LongAdder eventsReceived = new LongAdder();
+
+    private final LongAdder eventsCoalesced = new LongAdder();
+
+    private final LongAdder reopens = new LongAdder();
+
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+
+    /**
+     * @param info the file counted
+     */
+    public FileStatistics(FileInfo info)
+    {
+        this.info = info;
+    }
+
+    /**
+     * A change of the file was detected.
+     */
+    public void eventReceived()
+    {
+        eventsReceived.increment();
+        Statistics.EVENTS_RECEIVED.increment();
+    }
+
+    /**
+     * A change of the file was detected, while an earlier one was still
+     * waiting to be read, so both are handled by the same read.
+     */
+    public void eventCoalesced()
+    {
+        eventsCoalesced.increment();
+        Statistics.EVENTS_COALESCED.increment();
+    }
+
+    /**
+     * The file was replaced, and opened again.
+     */
+    public void reopened()
+    {
+        reopens.increment();
+        Statistics.REOPENS.increment();
+    }
+
+    /**
+     * Bytes were read from the file, and passed on to the output.
+     *
+     * @param bytes the number of bytes
+     * @param lines the number of newlines among them, 0 if they were not
+     * counted
+     */
+    public void read(long bytes, long lines)
+    {
+        bytesRead.add(bytes);
+        Statistics.BYTES_READ.add(bytes);
+        if (lines > 0)
+        {
+            linesEmitted.add(lines);
+            Statistics.LINES_EMITTED.add(lines);
+        }
+    }
+
+    /**
+     * The changes of the file were read.
+     *
+     * @param nanos how long it took, in nanoseconds
+     */
+    public void tailed(long nanos)
+    {
+        readLatency.record(nanos);
+        Statistics.READ_LATENCY.record(nanos);
+    }
+
+    /**
+     * @return how long it took to read the changes of the file
+     */
+    public LatencyHistogram getReadLatency()
+    {
+        return readLatency;
+    }
+
+    @Override
+    public String getFilename()
+    {
+        return info.getFilename();
+    }
+
+    @Override
+    public long getBytesRead()
+    {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getLinesEmitted()
+    {
+        return linesEmitted.sum();
+    }
+
+    @Override
+    public long getEventsReceived()
+    {
+        return eventsReceived.sum();
+    }
+
+    @Override
+    public long getEventsCoalesced()
+    {
+        return eventsCoalesced.sum();
+    }
+
+    @Override
+    public long getReopenCount()
+    {
+        return reopens.sum();
+    }
+
+    @Override
+    public long getLagBytes()
+    {
+        return Math.max(0, info.getSize() - info.getPosition());
+    }
+
+    @Override
+    public long getReadCount()
+    {
+        return readLatency.getCount();
+    }
+
+    @Override
+    public long getReadLatencyMedianMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(readLatency.getValueAtPercentile(50.0));
+    }
+
+    @Override
+    public long getReadLatency99Micros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(readLatency.getValueAtPercentile(99.0));
+    }
+
+    @Override
+    public long getReadLatencyMaxMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(readLatency.getMax());
+    }
+
+    @Override
+    public String toString()
+    {
+        return info.getFilename() + ": events " + getEventsReceived() + " (coalesced " + getEventsCoalesced()
+                + "), read " + getBytesRead() + " bytes, " + getLinesEmitted() + " lines, reopened "
+                + getReopenCount() + ", lag " + getLagBytes() + " bytes, reads " + readLatency;
+    }
+}
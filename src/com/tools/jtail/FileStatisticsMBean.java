@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+/**
+ * The statistics of a followed file, as exposed by JMX, under the name
+ * <code>com.tools.jtail:type=File,name="FILE"</code>.
+ * <img src="../../../images/FileStatisticsMBean.png"/>
+ *
+ * @startuml
+ * interface FileStatisticsMBean
+ * FileStatisticsMBean <|-- FileStatistics
+ * @enduml
+ *
+ * @author maartenl
+ */
+public interface FileStatisticsMBean
+{
+
+    /**
+     * @return the name of the file, as provided or found
+     */
+    public String getFilename();
+
+    /**
+     * @return the number of bytes read from the file
+     */
+    public long getBytesRead();
+
+    /**
+     * Only counted while statistics are enabled, see
+     * {@link Statistics#isEnabled() }, and not for bytes that the operating
+     * system copies straight to the output.
+     *
+     * @return the number of lines read from the file and passed on to the
+     * output, before any --grep or --exclude
+     */
+    public long getLinesEmitted();
+
+    /**
+     * @return the number of changes of the file detected by the watcher
+     */
+    public long getEventsReceived();
+
+    /**
+     * @return the number of changes of the file that were handled by the
+     * read of another change
+     */
+    public long getEventsCoalesced();
+
+    /**
+     * @return the number of times the file was opened again, because it was
+     * replaced
+     */
+    public long getReopenCount();
+
+    /**
+     * @return the number of bytes in the file that have not been read yet,
+     * at the last check of the file
+     */
+    public long getLagBytes();
+
+    /**
+     * @return the number of times changes of the file have been read
+     */
+    public long getReadCount();
+
+    /**
+     * @return the median time it took to read the changes, in microseconds
+     */
+    public long getReadLatencyMedianMicros();
+
+    /**
+     * @return the 99th percentile of the time it took to read the changes,
+     * in microseconds
+     */
+    public long getReadLatency99Micros();
+
+    /**
+     * @return the longest time it took to read the changes, in microseconds
+     */
+    public long getReadLatencyMaxMicros();
+}
@@ -17,8 +17,10 @@
 package com.tools.jtail;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
@@ -27,9 +29,14 @@ import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,8 +58,13 @@ import java.util.logging.Logger;
  * FileSystemWatcher --> java.nio.file.FileSystem
  * Watcher --> FileInfo
  * FileSystemWatcher : + {abstract} eventDetected(info: FileInfo) throws IOException
+ * FileSystemWatcher : + {abstract} idle() throws IOException
+ * FileSystemWatcher : + {abstract} discovered(info: FileInfo) throws IOException
  * FileSystemWatcher : +watch(fileInfo: FileInfo)
+ * FileSystemWatcher : +watch(directory: WatchedDirectory)
  * FileSystemWatcher : +startWatching() throws IOException
+ * FileSystemWatcher : +stop()
+ * FileSystemWatcher : +getOverflowCount(): long
  * @enduml
  *
  * @author maartenl
@@ -63,14 +75,35 @@ public abstract class FileSystemWatcher implements Watcher
     private static final Logger logger = Logger.getLogger(FileSystemWatcher.class.getName());
 
     /**
-     * Set of directories that need to be watched.
+     * Files to tail, grouped by the directory that needs to be watched, and
+     * within that directory found by their file name.
      */
-    private final Set<Path> directories = new HashSet<>();
+    private final Map<Path, Map<Path, FileInfo>> directories = new HashMap<>();
 
     /**
-     * Files to tail.
+     * Directories in which new files are to be tailed, including the
+     * subdirectories registered so far, by directory.
      */
-    private final Set<FileInfo> files = new HashSet<>();
+    private final Map<Path, WatchedDirectory> watchedDirectories = new HashMap<>();
+
+    /**
+     * Directories of the watch keys.
+     */
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+
+    /**
+     * Number of times the event queue of the operating system overflowed, and
+     * events were lost. Volatile, as it is read by {@link Statistics} on
+     * other threads.
+     */
+    private volatile long overflows;
+
+    /**
+     * The watch service while watching, null otherwise.
+     */
+    private volatile WatchService service;
+
+    private volatile boolean stopped;
 
     @SuppressWarnings("unchecked")
     private static <T> WatchEvent<T> cast(WatchEvent<?> event)
@@ -83,46 +116,216 @@ public abstract class FileSystemWatcher implements Watcher
             throws IOException
     {
         logger.entering(FileSystemWatcher.class.getName(), "watch");
-        files.add(fileInfo);
-        directories.add(fileInfo.getDirectory());
+        Map<Path, FileInfo> files = directories.get(fileInfo.getDirectory());
+        if (files == null)
+        {
+            files = new HashMap<>();
+            directories.put(fileInfo.getDirectory(), files);
+        }
+        files.put(fileInfo.getFile().getFileName(), fileInfo);
+        logger.exiting(FileSystemWatcher.class.getName(), "watch");
+    }
+
+    @Override
+    public void watch(WatchedDirectory directory) throws IOException
+    {
+        logger.entering(FileSystemWatcher.class.getName(), "watch");
+        watchedDirectories.put(directory.getDirectory(), directory);
         logger.exiting(FileSystemWatcher.class.getName(), "watch");
     }
 
-    private void processEvent(WatchEvent<?> event) throws IOException
+    /**
+     * Registers a directory with the watch service. Registering the same
+     * directory again returns the same key.
+     */
+    private void register(WatchService watcher, Path directory) throws IOException
+    {
+        logger.log(Level.FINEST, "Watching directory:{0}", directory);
+        keys.put(directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY), directory);
+    }
+
+    /**
+     * Registers a watched directory, and recursively its subdirectories.
+     * Registering happens before listing, so a file created in between is
+     * found twice instead of not at all. The files that are not watched yet
+     * are attached.
+     */
+    private void register(WatchService watcher, WatchedDirectory directory, Set<FileInfo> modified) throws IOException
+    {
+        watchedDirectories.put(directory.getDirectory(), directory);
+        register(watcher, directory.getDirectory());
+        for (Path file : directory.list())
+        {
+            attach(file, modified);
+        }
+        for (WatchedDirectory subdirectory : directory.listSubdirectories())
+        {
+            register(watcher, subdirectory, modified);
+        }
+    }
+
+    /**
+     * Starts watching a new file, if it is not watched already. A followed
+     * file that was renamed continues where it was, otherwise it starts at
+     * position 0. If the followed file has not noticed the rename yet, the
+     * new name is attached at a later event.
+     */
+    private void attach(Path file, Set<FileInfo> modified) throws IOException
+    {
+        Map<Path, FileInfo> files = directories.get(file.toAbsolutePath().normalize().getParent());
+        if (files != null && files.containsKey(file.getFileName()))
+        {
+            return;
+        }
+        FileInfo info;
+        try
+        {
+            info = new FileInfo(file.toString());
+        } catch (IOException ex)
+        {
+            logger.log(Level.FINE, "File {0} disappeared.", file);
+            return;
+        }
+        List<FileInfo> followed = new ArrayList<>();
+        for (Map<Path, FileInfo> watched : directories.values())
+        {
+            followed.addAll(watched.values());
+        }
+        if (!info.takeOver(followed))
+        {
+            logger.log(Level.FINE, "File {0} is still being read under another name.", file);
+            return;
+        }
+        logger.log(Level.FINE, "New file {0}.", file);
+        watch(info);
+        discovered(info);
+        modified.add(info);
+    }
+
+    /**
+     * Finds the file the event is about. Modified files are only collected,
+     * so several modifications of the same file in one batch of events
+     * result in only one read.
+     *
+     * New files in a watched directory are attached, and new directories
+     * registered, if recursive.
+     *
+     * @param watcher the watch service, to register new directories with
+     * @param directory the directory of the watch key
+     * @param event the event
+     * @param modified the files modified in this batch of events, in the order
+     * they were first modified.
+     * @throws IOException if a file we are tailing was deleted
+     */
+    private void processEvent(WatchService watcher, Path directory, WatchEvent<?> event, Set<FileInfo> modified) throws IOException
     {
         logger.entering(FileSystemWatcher.class.getName(), "processEvent");
+        Map<Path, FileInfo> files = directories.get(directory);
+        if (files == null)
+        {
+            files = Collections.emptyMap();
+        }
+        WatchedDirectory watched = watchedDirectories.get(directory);
         WatchEvent.Kind kind = event.kind();
-        // TBD - provide example of how OVERFLOW event is handled
         if (kind == OVERFLOW)
         {
+            // events have been lost, any file in the directory might have
+            // been changed. Those that did not, are skipped after the refresh.
+            overflows++;
+            logger.log(Level.INFO, "Events lost, rescanning {0} files (overflow {1}).", new Object[]
+            {
+                files.size(), overflows
+            });
+            modified.addAll(files.values());
+            if (watched != null)
+            {
+                // new files might be among the lost events
+                register(watcher, watched, modified);
+            }
             return;
         }
         // Context for directory entry event is the file name of entry
         WatchEvent<Path> ev = cast(event);
         Path context = ev.context();
-        logger.log(Level.FINEST, "processEvent filename {0}", context.toString());
-        for (FileInfo info : files)
+        logger.log(Level.FINEST, "processEvent filename {0}", context);
+        FileInfo info = files.get(context);
+        if (info == null)
         {
-            if (info.getFile().getFileName().toString().compareTo(context.toString()) == 0)
+            if (watched != null && event.kind() == ENTRY_CREATE)
             {
-                if (event.kind() == ENTRY_DELETE)
+                Path created = watched.resolve(context);
+                if (watched.isRecursive() && Files.isDirectory(created))
                 {
-                    throw new IOException("File " + info.getFilename() + " has been deleted.");
-                } else if (event.kind() == ENTRY_CREATE)
+                    register(watcher, watched.subdirectory(created), modified);
+                } else if (watched.matches(created))
                 {
-                    throw new IOException("File " + info.getFilename() + " has been created. That's weird.");
-                } else if (event.kind() == ENTRY_MODIFY)
-                {
-                    eventDetected(info);
-                } else
+                    attach(created, modified);
+                }
+            } else if (watched != null && event.kind() == ENTRY_MODIFY)
+            {
+                // a renamed file that could not be attached when created
+                Path changed = watched.resolve(context);
+                if (watched.matches(changed) && !Files.isDirectory(changed))
                 {
-                    throw new IOException("Unkown event " + event.kind() + " for file " + info.getFilename() + ".");
+                    attach(changed, modified);
                 }
             }
+            // otherwise some other file in the same directory
+            return;
+        }
+        if (event.kind() == ENTRY_DELETE)
+        {
+            throw new IOException("File " + info.getFilename() + " has been deleted.");
+        } else if (event.kind() == ENTRY_CREATE || event.kind() == ENTRY_MODIFY)
+        {
+            // modified, or created again with the same name, for example
+            // rotated
+            if (!modified.add(info))
+            {
+                // already read once for this batch
+                info.getStatistics().eventCoalesced();
+            }
+        } else
+        {
+            throw new IOException("Unkown event " + event.kind() + " for file " + info.getFilename() + ".");
         }
         logger.exiting(FileSystemWatcher.class.getName(), "processEvent");
     }
 
+    /**
+     * Number of times the operating system could not keep up and events were
+     * lost. Every time, the files in the directory are checked for changes.
+     *
+     * @return the number of overflows since starting to watch
+     */
+    public long getOverflowCount()
+    {
+        return overflows;
+    }
+
+    /**
+     * Tails the files that changed, and clears them.
+     */
+    private void tail(Set<FileInfo> modified) throws IOException
+    {
+        for (FileInfo info : modified)
+        {
+            try
+            {
+                info.refresh();
+            } catch (NoSuchFileException ex)
+            {
+                logger.log(Level.FINE, "File {0} is missing.", info.getFilename());
+                continue;
+            }
+            if (info.isChanged())
+            {
+                eventDetected(info);
+            }
+        }
+        modified.clear();
+    }
+
     @Override
     public void startWatching() throws IOException
     {
@@ -131,44 +334,96 @@ public abstract class FileSystemWatcher implements Watcher
         // NIO.2 of Java 7.
         try (WatchService watcher = FileSystems.getDefault().newWatchService())
         {
-            Set<WatchKey> keys = new HashSet<>();
-            for (Path directory : directories)
+            service = watcher;
+            if (stopped)
+            {
+                return;
+            }
+            // registering for file events
+            for (Path directory : new ArrayList<>(directories.keySet()))
             {
-                logger.log(Level.FINEST, "Watching directory:{0}", directory.toString());
-                // registering for file events
-                WatchKey key = directory.register(watcher, ENTRY_MODIFY);
-                keys.add(key);
+                register(watcher, directory);
             }
+            Set<FileInfo> modified = new LinkedHashSet<>();
+            for (WatchedDirectory directory : new ArrayList<>(watchedDirectories.values()))
+            {
+                register(watcher, directory, modified);
+            }
+            // files created before the directories were registered
+            tail(modified);
             // processing events
             boolean keepGoing = true;
             logger.log(Level.FINEST, "Entering while-loop.");
-            while (keepGoing)
+            while (keepGoing && !stopped)
             {
                 WatchKey foundKey;
                 try
                 {
-                    foundKey = watcher.take();
+                    foundKey = watcher.poll();
+                    while (foundKey == null)
+                    {
+                        // wake up every sleep interval, to be idle again
+                        idle();
+                        foundKey = watcher.poll(Options.sleepMillis(), TimeUnit.MILLISECONDS);
+                    }
                 } catch (InterruptedException ex)
                 {
                     // waiting interrupted, lets' wait some more
                     logger.log(Level.INFO, null, ex);
                     continue;
+                } catch (ClosedWatchServiceException ex)
+                {
+                    logger.log(Level.FINE, "Stopped watching.");
+                    break;
                 }
+                Path directory = keys.get(foundKey);
                 List<WatchEvent<?>> events = foundKey.pollEvents();
-                // foundKey == key,... it's the only registered key
                 for (WatchEvent<?> event : events)
                 {
-                    processEvent(event);
+                    processEvent(watcher, directory, event, modified);
+                }
+                tail(modified);
+                if (!foundKey.reset())
+                {
+                    // directory no longer accessible, for example deleted
+                    logger.log(Level.FINE, "No longer watching directory {0}.", directory);
+                    keys.remove(foundKey);
+                    keepGoing = !keys.isEmpty();
                 }
-                keepGoing = foundKey.reset();
             }
-            for (WatchKey key : keys)
+            for (WatchKey key : keys.keySet())
             {
                 key.cancel();
             }
-
+        } catch (ClosedWatchServiceException ex)
+        {
+            logger.log(Level.FINE, "Stopped watching.");
+        } finally
+        {
+            service = null;
         }
         logger.exiting(FileSystemWatcher.class.getName(), "startWatching");
     }
 
+    /**
+     * Closes the watch service, which wakes up the wait for events right
+     * away.
+     */
+    @Override
+    public void stop()
+    {
+        stopped = true;
+        WatchService current = service;
+        if (current != null)
+        {
+            try
+            {
+                current.close();
+            } catch (IOException ex)
+            {
+                logger.log(Level.FINE, "Could not close the watch service.", ex);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Passes on only the lines of a file accepted by a {@link LineFilter}, for
+ * --grep and --exclude. Lines are passed on as slices of the bytes read, so
+ * lines that are not accepted are never copied, and accepted lines that
+ * follow each other are passed on at once.</p>
+ * <p>
+ * A line that is not complete yet is kept until the rest of it has been
+ * read, which may be in a later tail of the file. So every file has its own
+ * FilterSink, which is pointed at the sink of the current tail with
+ * {@link #to(ByteSink) }. The header of the file is only passed on before
+ * the first accepted line, so files without any do not show up at all.</p>
+ * <img src="../../../images/FilterSink.png"/>
+ *
+ * @startuml
+ * ByteSink <|-- FilterSink
+ * FilterSink : +FilterSink(filter: LineFilter)
+ * FilterSink : +to(target: ByteSink): FilterSink
+ * FilterSink : +flush(info: FileInfo)
+ * FilterSink --> LineFilter
+ * FilterSink --> LineSplitter
+ * FilterSink --> ByteSink : target
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class FilterSink implements ByteSink
+{
+
+    private final LineFilter filter;
+
+    private final LineSplitter splitter;
+
+    private final ByteBuffer newline = ByteBuffer.wrap(new byte[]
+    {
+        '\n'
+    });
+
+    private ByteSink target;
+
+    /**
+     * Accepted lines that directly follow each other in the bytes read,
+     * including their newlines, passed on all at once. Null if there are
+     * none.
+     */
+    private ByteBuffer pending;
+
+    private long pendingOffset;
+
+    /**
+     * The header has been passed on, during the current tail.
+     */
+    private boolean begun;
+
+    /**
+     * @param filter decides which lines are passed on
+     */
+    public FilterSink(LineFilter filter)
+    {
+        this.filter = filter;
+        this.splitter = new LineSplitter(new LineSink()
+        {
+
+            @Override
+            public void line(FileInfo info, long offset, ByteBuffer line) throws IOException
+            {
+                if (FilterSink.this.filter.accept(line))
+                {
+                    accepted(info, offset, line);
+                }
+            }
+        });
+    }
+
+    private void accepted(FileInfo info, long offset, ByteBuffer line) throws IOException
+    {
+        if (!begun)
+        {
+            begun = true;
+            target.begin(info);
+        }
+        if (line.hasArray() && line.limit() < line.capacity()
+                && line.array()[line.arrayOffset() + line.limit()] == '\n')
+        {
+            // followed by its newline, in the bytes read
+            if (pending != null && pending.array() == line.array() && pending.limit() == line.position())
+            {
+                pending.limit(line.limit() + 1);
+                return;
+            }
+            passPending(info);
+            pending = line.duplicate();
+            pending.limit(line.limit() + 1);
+            pendingOffset = offset;
+            return;
+        }
+        passPending(info);
+        long end = offset + line.remaining();
+        target.bytes(info, offset, line);
+        newline.rewind();
+        target.bytes(info, end, newline);
+    }
+
+    /**
+     * Passes on the accepted lines that have not been passed on yet.
+     */
+    private void passPending(FileInfo info) throws IOException
+    {
+        if (pending != null)
+        {
+            target.bytes(info, pendingOffset, pending);
+            pending = null;
+        }
+    }
+
+    /**
+     * Points this at the sink of a new tail of the file.
+     *
+     * @param target where accepted lines go
+     * @return this
+     */
+    public FilterSink to(ByteSink target)
+    {
+        this.target = target;
+        this.begun = false;
+        return this;
+    }
+
+    @Override
+    public void begin(FileInfo info)
+    {
+        // only once a line is accepted
+    }
+
+    @Override
+    public void bytes(FileInfo info, long offset, ByteBuffer bytes) throws IOException
+    {
+        splitter.bytes(info, offset, bytes);
+        passPending(info);
+    }
+
+    /**
+     * Passes on the incomplete last line, if it is accepted. Used when the
+     * file is not followed, so the rest of the line will not be read.
+     *
+     * @param info the file
+     * @throws IOException if the target fails
+     */
+    public void flush(FileInfo info) throws IOException
+    {
+        splitter.flush(info);
+        passPending(info);
+    }
+
+    @Override
+    public void replaced(FileInfo info) throws IOException
+    {
+        splitter.replaced(info);
+        passPending(info);
+        target.replaced(info);
+    }
+
+    @Override
+    public void truncated(FileInfo info) throws IOException
+    {
+        splitter.truncated(info);
+        passPending(info);
+        target.truncated(info);
+    }
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Reads followed files in parallel, and writes what was read in order, on a
+ * single thread. The watcher only detects changes, so a file that is slow to
+ * read does not hold up the others.</p>
+ * <p>
+ * Every file has its own reader, which runs on a pool with a thread per core.
+ * A reader never runs twice at the same time, and changes detected while it
+ * runs are coalesced into one more run. What a reader outputs is handed over
+ * in chunks of at most {@link #CHUNK_SIZE} bytes, through a queue of
+ * {@link #CHUNKS} chunks per file. When the queue is full, the reader waits,
+ * so memory stays bounded however large a burst is. The writer writes all
+ * chunks of one run of a reader before starting on the next, so the output of
+ * a file is never interleaved with that of another.</p>
+ * <img src="../../../images/FollowerEngine.png"/>
+ *
+ * @startuml
+ * abstract class FollowerEngine
+ * FollowerEngine : +FollowerEngine(readers: int)
+ * FollowerEngine : +eventDetected(info: FileInfo)
+ * FollowerEngine : +drain()
+ * FollowerEngine : +close()
+ * FollowerEngine : # {abstract} tail(info: FileInfo, out: PrintStream)
+ * FollowerEngine : # {abstract} unchanged(info: FileInfo)
+ * FollowerEngine : # {abstract} write(info: FileInfo, bytes: byte[], length: int)
+ * FollowerEngine : # {abstract} written(info: FileInfo, position: long)
+ * FollowerEngine : # {abstract} idle()
+ * FollowerEngine --> "*" Reader
+ * Reader --> FileInfo
+ * @enduml
+ *
+ * @author maartenl
+ */
+public abstract class FollowerEngine
+{
+
+    private static final Logger logger = Logger.getLogger(FollowerEngine.class.getName());
+
+    /**
+     * Maximum size of a chunk handed over from a reader to the writer.
+     */
+    public static final int CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Chunks start small, as most runs only read a few lines.
+     */
+    private static final int INITIAL_CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * Maximum number of chunks a reader can be ahead of the writer.
+     */
+    public static final int CHUNKS = 4;
+
+    private final ExecutorService pool;
+
+    private final Thread writer;
+
+    private final Map<FileInfo, Reader> readers = new ConcurrentHashMap<>();
+
+    /**
+     * Runs of readers that have output something, in the order they started
+     * doing so.
+     */
+    private final BlockingQueue<Reader> ready = new LinkedBlockingQueue<>();
+
+    /**
+     * Put in {@link #ready} after the last run, to stop the writer.
+     */
+    private final Reader end = new Reader(null);
+
+    /**
+     * What made the writer stop, to be thrown at the next event.
+     */
+    private volatile IOException failure;
+
+    /**
+     * Part of the output of one run of a reader.
+     */
+    private static class Chunk
+    {
+
+        private final byte[] bytes;
+
+        private final int length;
+
+        /**
+         * The position in the file after the run, or -1 if this is not the
+         * last chunk of the run.
+         */
+        private final long position;
+
+        private Chunk(byte[] bytes, int length, long position)
+        {
+            this.bytes = bytes;
+            this.length = length;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Reads one file, one run at a time.
+     */
+    private class Reader implements Runnable
+    {
+
+        private final FileInfo info;
+
+        private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(CHUNKS);
+
+        /**
+         * The reader has been submitted to the pool, or is running.
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /**
+         * A change was detected since the current run started.
+         */
+        private final AtomicBoolean again = new AtomicBoolean();
+
+        private Reader(FileInfo info)
+        {
+            this.info = info;
+        }
+
+        private void changed()
+        {
+            if (again.getAndSet(true))
+            {
+                // the earlier change has not been read yet
+                info.getStatistics().eventCoalesced();
+            }
+            if (scheduled.compareAndSet(false, true))
+            {
+                pool.execute(this);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                do
+                {
+                    while (again.getAndSet(false))
+                    {
+                        read();
+                    }
+                    scheduled.set(false);
+                    // a change might have arrived just before unscheduling
+                } while (again.get() && scheduled.compareAndSet(false, true));
+            } catch (IOException ex)
+            {
+                fail(ex);
+            } catch (RuntimeException ex)
+            {
+                // otherwise the reader would stay scheduled, and the file
+                // would never be read again, without anybody knowing
+                fail(new IOException("Reading " + info.getFilename() + " failed.", ex));
+            } catch (InterruptedException ex)
+            {
+                logger.log(Level.FINE, "Reader of {0} interrupted.", info.getFilename());
+            }
+        }
+
+        /**
+         * One run: checks the file again, and outputs whatever changed. Every
+         * run ends on the writer, even if nothing changed after all.
+         */
+        private void read() throws IOException, InterruptedException
+        {
+            ChunkOutput output = new ChunkOutput(this);
+            try
+            {
+                info.refresh();
+            } catch (NoSuchFileException ex)
+            {
+                logger.log(Level.FINE, "File {0} is missing.", info.getFilename());
+                unchanged(info);
+                output.last(info.getPosition());
+                return;
+            }
+            if (!info.isChanged())
+            {
+                // already read by the run before
+                unchanged(info);
+                output.last(info.getPosition());
+                return;
+            }
+            try (PrintStream out = new PrintStream(output, false))
+            {
+                tail(info, out);
+            }
+            if (Thread.currentThread().isInterrupted())
+            {
+                // the PrintStream swallows the InterruptedIOException
+                throw new InterruptedException("Interrupted while handing over output.");
+            }
+            output.last(info.getPosition());
+        }
+    }
+
+    /**
+     * Collects the output of a run of a reader, and hands it over in chunks.
+     */
+    private class ChunkOutput extends OutputStream
+    {
+
+        private final Reader reader;
+
+        private byte[] bytes = new byte[INITIAL_CHUNK_SIZE];
+
+        private int length;
+
+        private boolean started;
+
+        private ChunkOutput(Reader reader)
+        {
+            this.reader = reader;
+        }
+
+        private void put(Chunk chunk) throws InterruptedIOException
+        {
+            try
+            {
+                reader.chunks.put(chunk);
+            } catch (InterruptedException ex)
+            {
+                throw new InterruptedIOException(ex.getMessage());
+            }
+            if (!started)
+            {
+                started = true;
+                ready.add(reader);
+            }
+        }
+
+        /**
+         * Makes room for more bytes, by growing the chunk, or if it is full,
+         * handing it over and starting a new one.
+         */
+        private void makeRoom() throws InterruptedIOException
+        {
+            if (bytes.length < CHUNK_SIZE)
+            {
+                bytes = Arrays.copyOf(bytes, Math.min(CHUNK_SIZE, bytes.length * 2));
+                return;
+            }
+            put(new Chunk(bytes, length, -1));
+            bytes = new byte[CHUNK_SIZE];
+            length = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if (length == bytes.length)
+            {
+                makeRoom();
+            }
+            bytes[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                if (length == bytes.length)
+                {
+                    makeRoom();
+                }
+                int part = Math.min(len, bytes.length - length);
+                System.arraycopy(b, off, bytes, length, part);
+                length += part;
+                off += part;
+                len -= part;
+            }
+        }
+
+        /**
+         * Hands over the rest, even if nothing was output at all, as the run
+         * is only done once the writer has had it.
+         */
+        private void last(long position) throws InterruptedIOException
+        {
+            put(new Chunk(bytes, length, position));
+        }
+    }
+
+    /**
+     * Starts the pool of readers and the writer.
+     *
+     * @param readers the number of files that are read at the same time
+     */
+    public FollowerEngine(int readers)
+    {
+        pool = Executors.newFixedThreadPool(readers, new ThreadFactory()
+        {
+
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "jtail reader " + ++count);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        writer = new Thread("jtail writer")
+        {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    write();
+                } catch (IOException ex)
+                {
+                    fail(ex);
+                } catch (InterruptedException ex)
+                {
+                    logger.log(Level.FINE, "Writer interrupted.");
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void fail(IOException ex)
+    {
+        logger.log(Level.SEVERE, null, ex);
+        failure = ex;
+    }
+
+    /**
+     * Writes the runs of the readers, in the order they started outputting.
+     * When there is nothing to write, {@link #idle() } is called, and again
+     * every sleep interval.
+     */
+    private void write() throws IOException, InterruptedException
+    {
+        while (true)
+        {
+            Reader reader = ready.poll();
+            while (reader == null)
+            {
+                idle();
+                reader = ready.poll(Options.sleepMillis(), TimeUnit.MILLISECONDS);
+            }
+            if (reader == end)
+            {
+                return;
+            }
+            Chunk chunk;
+            do
+            {
+                chunk = reader.chunks.poll(Options.sleepMillis(), TimeUnit.MILLISECONDS);
+                if (chunk == null)
+                {
+                    if (failure != null)
+                    {
+                        // the reader failed halfway its run, the rest of it
+                        // will never come
+                        return;
+                    }
+                    continue;
+                }
+                write(reader.info, chunk.bytes, chunk.length);
+            } while (chunk == null || chunk.position == -1);
+            written(reader.info, chunk.position);
+        }
+    }
+
+    /**
+     * Reads the file, on a thread of the pool. Returns right away.
+     *
+     * @param info the file that changed
+     * @throws IOException if reading or writing failed before
+     */
+    public void eventDetected(FileInfo info) throws IOException
+    {
+        if (failure != null)
+        {
+            throw failure;
+        }
+        Reader reader = readers.get(info);
+        if (reader == null)
+        {
+            reader = new Reader(info);
+            readers.put(info, reader);
+        }
+        reader.changed();
+    }
+
+    /**
+     * Waits until all changes detected so far have been read and written,
+     * and then stops the readers and the writer. No more changes can be
+     * handed over afterwards. If reading or writing fails, nothing more is
+     * waited for.
+     *
+     * @throws IOException if reading or writing failed
+     */
+    public void drain() throws IOException
+    {
+        pool.shutdown();
+        try
+        {
+            while (failure == null && !pool.awaitTermination(Options.sleepMillis(), TimeUnit.MILLISECONDS))
+            {
+                // readers might be blocked handing over to a failed writer
+            }
+            if (failure == null)
+            {
+                // after all runs that are still to be written
+                ready.add(end);
+                writer.join();
+            }
+        } catch (InterruptedException ex)
+        {
+            close();
+            throw new InterruptedIOException(ex.getMessage());
+        }
+        if (failure != null)
+        {
+            close();
+            throw failure;
+        }
+    }
+
+    /**
+     * Stops the readers and the writer, without waiting for them.
+     */
+    public void close()
+    {
+        pool.shutdownNow();
+        writer.interrupt();
+    }
+
+    /**
+     * Outputs the changes of a file. Called on a reader thread, never at the
+     * same time for the same file.
+     *
+     * @param info the file
+     * @param out where to write to
+     * @throws IOException if the file could not be read
+     */
+    protected abstract void tail(FileInfo info, PrintStream out) throws IOException;
+
+    /**
+     * Called on a reader thread instead of {@link #tail(FileInfo, PrintStream)
+     * }, when there turns out to be nothing to read, for example because the
+     * change was already read by the run before. The run still ends with
+     * {@link #written(FileInfo, long) }.
+     *
+     * @param info the file
+     */
+    protected abstract void unchanged(FileInfo info);
+
+    /**
+     * Writes part of the output of a reader. Called on the writer thread.
+     *
+     * @param info the file the output is of
+     * @param bytes the output
+     * @param length the number of bytes
+     * @throws IOException if the writing fails
+     */
+    protected abstract void write(FileInfo info, byte[] bytes, int length) throws IOException;
+
+    /**
+     * Called on the writer thread, after all the output of a run of a reader
+     * has been written, also if there was none.
+     *
+     * @param info the file
+     * @param position the position in the file up until where it was written
+     * @throws IOException if, for example, writing the output fails
+     */
+    protected abstract void written(FileInfo info, long position) throws IOException;
+
+    /**
+     * Called on the writer thread, when there is nothing to write.
+     *
+     * @throws IOException if, for example, writing the output fails
+     */
+    protected abstract void idle() throws IOException;
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ * An index of access points into a gzip file, stored next to the file as
+ * <i>filename</i>.jtailidx, like a {@link LineIndex}. About every
+ * {@link #SPAN} bytes of uncompressed output, at the start of a deflate
+ * block, it records where that block starts in the compressed file and the
+ * last {@link GzipInflater#WINDOW_SIZE} bytes of output before it. A
+ * {@link GzipInflater} can start inflating there, so the end of a large
+ * compressed log is found by inflating only the last span, instead of the
+ * whole file. This is the approach of zran.c in the examples of zlib.</p>
+ * <p>
+ * The index also records the uncompressed length, and the number of newlines
+ * before every access point and in total, so lines can be counted from the
+ * end without inflating anything.</p>
+ * <p>
+ * The sidecar starts with a header of {@link #HEADER_SIZE} bytes, followed by
+ * the access points, each with its window compressed. Compressed files are
+ * not expected to grow, so if the file no longer matches the header, the
+ * whole index is rebuilt.</p>
+ * <img src="../../../images/GzipIndex.png"/>
+ *
+ * @startuml
+ * GzipIndex : +{static} open(file: Path): GzipIndex
+ * GzipIndex : +update(info: FileInfo)
+ * GzipIndex : +getLength(): long
+ * GzipIndex : +getNewlines(): long
+ * GzipIndex : +endsWithNewline(): boolean
+ * GzipIndex : +find(offset: long, newlines: long): AccessPoint
+ * GzipIndex : +close()
+ * GzipIndex +-- AccessPoint
+ * AccessPoint : +getOffset(): long
+ * AccessPoint : +getNewlines(): long
+ * AccessPoint : +inflate(channel: FileChannel): GzipInflater
+ * FileInfo --> GzipIndex
+ * GzipIndex ..> GzipInflater
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class GzipIndex
+{
+
+    private static final Logger logger = Logger.getLogger(GzipIndex.class.getName());
+
+    /**
+     * Minimum number of uncompressed bytes between two access points.
+     */
+    public static final int SPAN = 1024 * 1024;
+
+    /**
+     * Size of the header of the sidecar file.
+     */
+    public static final int HEADER_SIZE = 72;
+
+    private static final int MAGIC = 0x4a54475a; // JTGZ
+
+    private static final int VERSION = 1;
+
+    /**
+     * Buffer size of 64k.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path sidecar;
+
+    /**
+     * Hash of the file key of the file that was indexed.
+     */
+    private long fileKey;
+
+    /**
+     * Size of the compressed file that was indexed.
+     */
+    private long size;
+
+    private long lastModified;
+
+    /**
+     * Number of bytes of uncompressed output.
+     */
+    private long length;
+
+    private long newlines;
+
+    private boolean endsWithNewline;
+
+    private List<AccessPoint> points = new ArrayList<>();
+
+    /**
+     * The index has been compared to the file, and rebuilt if required.
+     */
+    private boolean validated;
+
+    /**
+     * The sidecar does not match the index in memory.
+     */
+    private boolean changed;
+
+    /**
+     * False once writing the sidecar failed, for example because the
+     * directory is read only. The index is then only kept in memory.
+     */
+    private boolean persistent = true;
+
+    /**
+     * A point where inflating can start, at the start of a deflate block.
+     */
+    public static class AccessPoint
+    {
+
+        private final long offset;
+
+        private final long newlines;
+
+        private final long position;
+
+        private final int bitOffset;
+
+        private final byte[] window;
+
+        private AccessPoint(long offset, long newlines, long position, int bitOffset, byte[] window)
+        {
+            this.offset = offset;
+            this.newlines = newlines;
+            this.position = position;
+            this.bitOffset = bitOffset;
+            this.window = window;
+        }
+
+        /**
+         * The offset in the uncompressed output.
+         *
+         * @return the number of uncompressed bytes before this point
+         */
+        public long getOffset()
+        {
+            return offset;
+        }
+
+        /**
+         * @return the number of newlines before this point
+         */
+        public long getNewlines()
+        {
+            return newlines;
+        }
+
+        /**
+         * Starts inflating at this point.
+         *
+         * @param channel the gzip file
+         * @return the inflater, which outputs starting at {@link #getOffset()
+         * }
+         * @throws IOException if the file could not be read
+         */
+        public GzipInflater inflate(FileChannel channel) throws IOException
+        {
+            return new GzipInflater(channel, position, bitOffset, window);
+        }
+    }
+
+    private GzipIndex(Path sidecar)
+    {
+        this.sidecar = sidecar;
+    }
+
+    /**
+     * Reads the index of the file from its sidecar file, if it exists. It is
+     * only validated against the file on the first {@link #update(FileInfo)}.
+     *
+     * @param file the gzip file that is indexed, not the sidecar.
+     * @return the index, possibly empty
+     * @throws IOException if the sidecar exists, but could not be read
+     */
+    public static GzipIndex open(Path file) throws IOException
+    {
+        GzipIndex index = new GzipIndex(Paths.get(file.toString() + LineIndex.EXTENSION));
+        try (FileChannel channel = FileChannel.open(index.sidecar, StandardOpenOption.READ))
+        {
+            index.read(channel);
+        } catch (NoSuchFileException ex)
+        {
+            logger.log(Level.FINEST, "No index {0} yet.", index.sidecar);
+        }
+        return index;
+    }
+
+    private void read(FileChannel channel) throws IOException
+    {
+        ByteBuffer data = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, channel.size()));
+        readFully(channel, data, 0);
+        data.flip();
+        if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC || data.getInt() != VERSION
+                || data.getInt() != SPAN)
+        {
+            logger.log(Level.INFO, "Ignoring index {0}, unknown format.", sidecar);
+            return;
+        }
+        data.getInt();
+        fileKey = data.getLong();
+        size = data.getLong();
+        lastModified = data.getLong();
+        length = data.getLong();
+        newlines = data.getLong();
+        endsWithNewline = data.getLong() != 0;
+        long count = data.getLong();
+        Inflater inflater = new Inflater();
+        try
+        {
+            for (long i = 0; i < count; i++)
+            {
+                long offset = data.getLong();
+                long before = data.getLong();
+                long position = data.getLong();
+                int bitOffset = data.getInt();
+                byte[] window = new byte[data.getInt()];
+                byte[] compressed = new byte[data.getInt()];
+                data.get(compressed);
+                inflater.reset();
+                inflater.setInput(compressed);
+                if (inflater.inflate(window) != window.length)
+                {
+                    throw new DataFormatException("Window too short.");
+                }
+                points.add(new AccessPoint(offset, before, position, bitOffset, window));
+            }
+        } catch (RuntimeException | DataFormatException ex)
+        {
+            logger.log(Level.INFO, "Ignoring index {0}, incomplete.", sidecar);
+            size = -1;
+            points.clear();
+        } finally
+        {
+            inflater.end();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) == -1)
+            {
+                break;
+            }
+        }
+    }
+
+    private static long hash(Object fileKey)
+    {
+        if (fileKey == null)
+        {
+            return 0;
+        }
+        String key = fileKey.toString();
+        long hash = 1125899906842597L;
+        for (int i = 0; i < key.length(); i++)
+        {
+            hash = 31 * hash + key.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Brings the index up to date with the file, using the attributes of the
+     * last {@link FileInfo#refresh() }. If the file is not the file that was
+     * indexed, or it has been changed since, the whole file is inflated to
+     * build the index again.
+     *
+     * @param info the gzip file
+     * @throws IOException if the file could not be read, or is not in gzip
+     * format
+     */
+    public void update(FileInfo info) throws IOException
+    {
+        if (validated && fileKey == hash(info.getFileKey()) && size == info.getSize())
+        {
+            return;
+        }
+        long modified = info.getLastModified().toMillis();
+        if (fileKey != hash(info.getFileKey()) || size != info.getSize() || lastModified != modified)
+        {
+            logger.log(Level.FINE, "Building index {0}.", sidecar);
+            build(info.getChannel());
+            fileKey = hash(info.getFileKey());
+            size = info.getSize();
+            lastModified = modified;
+            changed = true;
+            store();
+        }
+        validated = true;
+    }
+
+    /**
+     * Inflates the whole file, adding an access point at the first block
+     * that starts at least {@link #SPAN} bytes after the last one.
+     */
+    private void build(FileChannel channel) throws IOException
+    {
+        points = new ArrayList<>();
+        length = 0;
+        newlines = 0;
+        endsWithNewline = false;
+        GzipInflater inflater = new GzipInflater(channel);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] array = buffer.array();
+        long last = 0;
+        while (true)
+        {
+            if (length - last >= SPAN && inflater.isAtBlockStart())
+            {
+                points.add(new AccessPoint(length, newlines, inflater.getInputPosition(),
+                        inflater.getBitOffset(), inflater.getWindow()));
+                last = length;
+            }
+            int read = inflater.read(array, 0, array.length);
+            if (read == -1)
+            {
+                break;
+            }
+            newlines += NewlineScanner.count(buffer, 0, read);
+            endsWithNewline = array[read - 1] == '\n';
+            length += read;
+        }
+    }
+
+    /**
+     * Writes the whole index to the sidecar, the windows compressed.
+     */
+    private void store()
+    {
+        if (!persistent || !changed)
+        {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(sidecar, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(SPAN).putInt(0);
+            header.putLong(fileKey).putLong(size).putLong(lastModified);
+            header.putLong(length).putLong(newlines).putLong(endsWithNewline ? 1 : 0).putLong(points.size());
+            header.flip();
+            write(channel, header, 0);
+            long position = HEADER_SIZE;
+            Deflater deflater = new Deflater();
+            byte[] compressed = new byte[GzipInflater.WINDOW_SIZE * 2];
+            try
+            {
+                for (AccessPoint point : points)
+                {
+                    deflater.reset();
+                    deflater.setInput(point.window);
+                    deflater.finish();
+                    int count = deflater.deflate(compressed);
+                    ByteBuffer data = ByteBuffer.allocate(36 + count);
+                    data.putLong(point.offset).putLong(point.newlines).putLong(point.position);
+                    data.putInt(point.bitOffset).putInt(point.window.length).putInt(count);
+                    data.put(compressed, 0, count);
+                    data.flip();
+                    write(channel, data, position);
+                    position += data.limit();
+                }
+            } finally
+            {
+                deflater.end();
+            }
+            changed = false;
+        } catch (IOException ex)
+        {
+            logger.log(Level.INFO, "Could not write index " + sidecar + ", keeping it in memory only.", ex);
+            persistent = false;
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer data, long position) throws IOException
+    {
+        while (data.hasRemaining())
+        {
+            channel.write(data, position + data.position());
+        }
+    }
+
+    /**
+     * @return the number of bytes of uncompressed output
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return the number of newlines in the uncompressed output
+     */
+    public long getNewlines()
+    {
+        return newlines;
+    }
+
+    /**
+     * @return true if the last byte of the uncompressed output is a newline
+     */
+    public boolean endsWithNewline()
+    {
+        return endsWithNewline;
+    }
+
+    /**
+     * Finds the last access point before both an offset and the start of a
+     * line.
+     *
+     * @param offset the offset in the uncompressed output
+     * @param lines the number of newlines before the start of the line, which
+     * is the number of the line counting from 0
+     * @return the access point, or null if inflating has to start at the
+     * beginning of the file
+     */
+    public AccessPoint find(long offset, long lines)
+    {
+        AccessPoint found = null;
+        for (AccessPoint point : points)
+        {
+            // a point with as many newlines before it might be in the middle
+            // of the line
+            if (point.offset > offset || point.newlines >= lines)
+            {
+                break;
+            }
+            found = point;
+        }
+        return found;
+    }
+
+    /**
+     * Writes the index, if it has not been written yet.
+     */
+    public void close()
+    {
+        store();
+    }
+
+    @Override
+    public String toString()
+    {
+        return Objects.toString(sidecar);
+    }
+}
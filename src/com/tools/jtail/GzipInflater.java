@@ -0,0 +1,693 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipException;
+
+/**
+ * <p>
+ * Decompresses a gzip file, like java.util.zip.GZIPInputStream, but can also
+ * start in the middle of it. {@link java.util.zip.Inflater} can only start
+ * at the beginning of a deflate stream, or at a byte boundary, while deflate
+ * blocks start at any bit. So this is a small inflater of its own, following
+ * RFC 1951 and RFC 1952, including files of several concatenated gzip
+ * members.</p>
+ * <p>
+ * Reading stops at the end of every deflate block, where
+ * {@link #isAtBlockStart() } is true. There, {@link #getInputPosition() },
+ * {@link #getBitOffset() } and the last {@link #WINDOW_SIZE} bytes of output,
+ * {@link #getWindow() }, are all that is needed to continue from that point
+ * later on, as the {@link GzipIndex} does. This is the approach of zran.c in
+ * the examples of zlib.</p>
+ * <p>
+ * The checksums in the trailers are not checked, as they are not available
+ * when starting in the middle.</p>
+ * <img src="../../../images/GzipInflater.png"/>
+ *
+ * @startuml
+ * java.io.InputStream <|-- GzipInflater
+ * GzipInflater : +GzipInflater(channel: FileChannel)
+ * GzipInflater : +GzipInflater(channel: FileChannel, position: long, bitOffset: int, window: byte[])
+ * GzipInflater : +read(bytes: byte[], offset: int, length: int): int
+ * GzipInflater : +isAtBlockStart(): boolean
+ * GzipInflater : +getInputPosition(): long
+ * GzipInflater : +getBitOffset(): int
+ * GzipInflater : +getWindow(): byte[]
+ * GzipInflater +-- Huffman
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class GzipInflater extends InputStream
+{
+
+    private static final Logger logger = Logger.getLogger(GzipInflater.class.getName());
+
+    /**
+     * The maximum distance deflate refers back to.
+     */
+    public static final int WINDOW_SIZE = 32 * 1024;
+
+    /**
+     * Buffer size of 64k.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_MATCH = 258;
+
+    private static final int[] LENGTH_BASE =
+    {
+        3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258
+    };
+
+    private static final int[] LENGTH_EXTRA =
+    {
+        0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+    };
+
+    private static final int[] DISTANCE_BASE =
+    {
+        1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073,
+        4097, 6145, 8193, 12289, 16385, 24577
+    };
+
+    private static final int[] DISTANCE_EXTRA =
+    {
+        0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13
+    };
+
+    /**
+     * The order in which the lengths of the code length codes are stored.
+     */
+    private static final int[] CODE_LENGTH_ORDER =
+    {
+        16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+    };
+
+    private static final Huffman FIXED_LITERALS;
+
+    private static final Huffman FIXED_DISTANCES;
+
+    static
+    {
+        byte[] lengths = new byte[288];
+        Arrays.fill(lengths, 0, 144, (byte) 8);
+        Arrays.fill(lengths, 144, 256, (byte) 9);
+        Arrays.fill(lengths, 256, 280, (byte) 7);
+        Arrays.fill(lengths, 280, 288, (byte) 8);
+        FIXED_LITERALS = new Huffman(lengths, 0, 288);
+        Arrays.fill(lengths, 0, 30, (byte) 5);
+        FIXED_DISTANCES = new Huffman(lengths, 0, 30);
+    }
+
+    private enum State
+    {
+
+        /**
+         * Expecting the header of a gzip member.
+         */
+        MEMBER,
+        /**
+         * Expecting the header of a deflate block.
+         */
+        BLOCK,
+        STORED,
+        COMPRESSED,
+        /**
+         * Expecting the trailer of a gzip member.
+         */
+        TRAILER,
+        DONE
+    }
+
+    /**
+     * A canonical Huffman code, decoded with a single table indexed by the
+     * next bits of the input. Every entry contains the symbol and the length
+     * of its code.
+     */
+    private static class Huffman
+    {
+
+        private final int[] table;
+
+        private final int bits;
+
+        private Huffman(byte[] lengths, int offset, int count)
+        {
+            int[] counts = new int[16];
+            int max = 0;
+            for (int i = 0; i < count; i++)
+            {
+                counts[lengths[offset + i]]++;
+                max = Math.max(max, lengths[offset + i]);
+            }
+            counts[0] = 0;
+            int[] next = new int[16];
+            int code = 0;
+            for (int length = 1; length < 16; length++)
+            {
+                code = (code + counts[length - 1]) << 1;
+                next[length] = code;
+            }
+            bits = max;
+            table = new int[1 << max];
+            for (int symbol = 0; symbol < count; symbol++)
+            {
+                int length = lengths[offset + symbol];
+                if (length == 0)
+                {
+                    continue;
+                }
+                int reversed = Integer.reverse(next[length]++) >>> (32 - length);
+                for (int i = reversed; i < table.length; i += 1 << length)
+                {
+                    table[i] = symbol << 4 | length;
+                }
+            }
+        }
+    }
+
+    private final FileChannel channel;
+
+    private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Position in the file up until where it has been read into the input.
+     */
+    private long inputPosition;
+
+    /**
+     * The bits of the input that have been read, but not used yet, the next
+     * one in the lowest bit.
+     */
+    private long bitBuffer;
+
+    private int bitCount;
+
+    /**
+     * Number of zero bits added to the bit buffer, after the end of the file.
+     */
+    private int padding;
+
+    /**
+     * The output, including at least {@link #WINDOW_SIZE} bytes before start,
+     * if there were that many.
+     */
+    private final byte[] output = new byte[3 * WINDOW_SIZE + MAX_MATCH];
+
+    /**
+     * The first byte of output that has not been read yet.
+     */
+    private int start;
+
+    private int end;
+
+    private State state;
+
+    private boolean lastBlock;
+
+    private boolean firstMember = true;
+
+    /**
+     * Bytes left in the current stored block.
+     */
+    private int stored;
+
+    private Huffman literals;
+
+    private Huffman distances;
+
+    /**
+     * Starts at the beginning of a gzip file.
+     *
+     * @param channel the gzip file
+     */
+    public GzipInflater(FileChannel channel)
+    {
+        this.channel = channel;
+        this.state = State.MEMBER;
+        input.flip();
+    }
+
+    /**
+     * Starts at the start of a deflate block, in the middle of a gzip file.
+     *
+     * @param channel the gzip file
+     * @param position position of the byte containing the first bit of the
+     * block
+     * @param bitOffset the number of bits of that byte that belong to the
+     * block before
+     * @param window the last output before the block, at most
+     * {@link #WINDOW_SIZE} bytes
+     * @throws IOException if the file could not be read
+     */
+    public GzipInflater(FileChannel channel, long position, int bitOffset, byte[] window) throws IOException
+    {
+        this.channel = channel;
+        this.state = State.BLOCK;
+        this.firstMember = false;
+        input.flip();
+        inputPosition = position;
+        if (bitOffset > 0)
+        {
+            bits(bitOffset);
+        }
+        System.arraycopy(window, 0, output, 0, window.length);
+        start = window.length;
+        end = window.length;
+    }
+
+    /**
+     * Reads the next byte of the file.
+     *
+     * @return the byte, or -1 at the end of the file
+     */
+    private int nextByte() throws IOException
+    {
+        if (!input.hasRemaining())
+        {
+            input.clear();
+            int read = channel.read(input, inputPosition);
+            input.flip();
+            if (read <= 0)
+            {
+                return -1;
+            }
+            inputPosition += read;
+        }
+        return input.get() & 0xFF;
+    }
+
+    /**
+     * Makes sure there are at least count bits in the bit buffer, adding
+     * zeros after the end of the file, as a code at the very end might be
+     * shorter than the bits looked at.
+     */
+    private void need(int count) throws IOException
+    {
+        while (bitCount < count)
+        {
+            int b = padding == 0 ? nextByte() : -1;
+            if (b == -1)
+            {
+                padding += 8;
+                b = 0;
+            }
+            bitBuffer |= (long) b << bitCount;
+            bitCount += 8;
+        }
+    }
+
+    /**
+     * Uses bits, and checks that they are not beyond the end of the file.
+     */
+    private void drop(int count) throws IOException
+    {
+        bitBuffer >>>= count;
+        bitCount -= count;
+        if (bitCount < padding)
+        {
+            throw new EOFException("Unexpected end of gzip file.");
+        }
+    }
+
+    private int bits(int count) throws IOException
+    {
+        if (count == 0)
+        {
+            return 0;
+        }
+        need(count);
+        int value = (int) (bitBuffer & ((1L << count) - 1));
+        drop(count);
+        return value;
+    }
+
+    private int decode(Huffman huffman) throws IOException
+    {
+        need(huffman.bits);
+        int entry = huffman.table[(int) (bitBuffer & ((1L << huffman.bits) - 1))];
+        int length = entry & 0xF;
+        if (length == 0)
+        {
+            throw new ZipException("Invalid Huffman code in gzip file.");
+        }
+        drop(length);
+        return entry >>> 4;
+    }
+
+    /**
+     * Skips to the next byte boundary.
+     */
+    private void align() throws IOException
+    {
+        drop(bitCount % 8);
+    }
+
+    /**
+     * Indicates that the file has been read completely.
+     */
+    private boolean isAtEnd() throws IOException
+    {
+        if (bitCount > padding)
+        {
+            return false;
+        }
+        if (padding > 0 || input.hasRemaining())
+        {
+            return padding > 0;
+        }
+        int b = nextByte();
+        if (b == -1)
+        {
+            return true;
+        }
+        input.position(input.position() - 1);
+        return false;
+    }
+
+    /**
+     * Reads the header of a gzip member. Anything after the last member that
+     * is not a gzip member is ignored, like gzip itself does.
+     *
+     * @return false if there are no more members
+     */
+    private boolean member() throws IOException
+    {
+        if (isAtEnd())
+        {
+            if (firstMember)
+            {
+                throw new EOFException("Empty gzip file.");
+            }
+            return false;
+        }
+        if (bits(8) != 0x1f || bits(8) != 0x8b || bits(8) != 8)
+        {
+            if (firstMember)
+            {
+                throw new ZipException("Not in gzip format.");
+            }
+            logger.log(Level.FINE, "Ignoring trailing garbage after the last gzip member.");
+            return false;
+        }
+        firstMember = false;
+        int flags = bits(8);
+        // modification time, extra flags and operating system
+        for (int i = 0; i < 6; i++)
+        {
+            bits(8);
+        }
+        if ((flags & 4) != 0)
+        {
+            int length = bits(16);
+            for (int i = 0; i < length; i++)
+            {
+                bits(8);
+            }
+        }
+        // file name, and comment
+        for (int flag = 8; flag <= 16; flag <<= 1)
+        {
+            if ((flags & flag) != 0)
+            {
+                while (bits(8) != 0)
+                {
+                    // skip
+                }
+            }
+        }
+        if ((flags & 2) != 0)
+        {
+            bits(16);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the header of a deflate block.
+     */
+    private void block() throws IOException
+    {
+        lastBlock = bits(1) == 1;
+        int type = bits(2);
+        switch (type)
+        {
+            case 0:
+                align();
+                stored = bits(16);
+                if ((bits(16) ^ 0xFFFF) != stored)
+                {
+                    throw new ZipException("Invalid stored block length in gzip file.");
+                }
+                state = State.STORED;
+                break;
+            case 1:
+                literals = FIXED_LITERALS;
+                distances = FIXED_DISTANCES;
+                state = State.COMPRESSED;
+                break;
+            case 2:
+                dynamic();
+                state = State.COMPRESSED;
+                break;
+            default:
+                throw new ZipException("Invalid block type in gzip file.");
+        }
+    }
+
+    /**
+     * Reads the Huffman codes of a block with dynamic codes.
+     */
+    private void dynamic() throws IOException
+    {
+        int literalCount = bits(5) + 257;
+        int distanceCount = bits(5) + 1;
+        int codeLengthCount = bits(4) + 4;
+        byte[] lengths = new byte[literalCount + distanceCount];
+        byte[] codeLengths = new byte[19];
+        for (int i = 0; i < codeLengthCount; i++)
+        {
+            codeLengths[CODE_LENGTH_ORDER[i]] = (byte) bits(3);
+        }
+        Huffman codeLengthCode = new Huffman(codeLengths, 0, 19);
+        int i = 0;
+        while (i < lengths.length)
+        {
+            int symbol = decode(codeLengthCode);
+            if (symbol < 16)
+            {
+                lengths[i++] = (byte) symbol;
+                continue;
+            }
+            byte length = 0;
+            int repeat;
+            if (symbol == 16)
+            {
+                if (i == 0)
+                {
+                    throw new ZipException("Invalid code lengths in gzip file.");
+                }
+                length = lengths[i - 1];
+                repeat = 3 + bits(2);
+            } else if (symbol == 17)
+            {
+                repeat = 3 + bits(3);
+            } else
+            {
+                repeat = 11 + bits(7);
+            }
+            if (i + repeat > lengths.length)
+            {
+                throw new ZipException("Invalid code lengths in gzip file.");
+            }
+            Arrays.fill(lengths, i, i + repeat, length);
+            i += repeat;
+        }
+        literals = new Huffman(lengths, 0, literalCount);
+        distances = new Huffman(lengths, literalCount, distanceCount);
+    }
+
+    /**
+     * Inflates until the output is full, or the end of a block, whichever
+     * comes first.
+     */
+    private void inflate() throws IOException
+    {
+        if (end > 2 * WINDOW_SIZE)
+        {
+            // everything has been read, keep the window
+            System.arraycopy(output, end - WINDOW_SIZE, output, 0, WINDOW_SIZE);
+            start = WINDOW_SIZE;
+            end = WINDOW_SIZE;
+        }
+        int limit = output.length - MAX_MATCH;
+        switch (state)
+        {
+            case MEMBER:
+                state = member() ? State.BLOCK : State.DONE;
+                return;
+            case BLOCK:
+                block();
+                return;
+            case STORED:
+                while (stored > 0 && end < limit)
+                {
+                    output[end++] = (byte) bits(8);
+                    stored--;
+                }
+                if (stored == 0)
+                {
+                    endOfBlock();
+                }
+                return;
+            case COMPRESSED:
+                while (end < limit)
+                {
+                    int symbol = decode(literals);
+                    if (symbol < 256)
+                    {
+                        output[end++] = (byte) symbol;
+                        continue;
+                    }
+                    if (symbol == 256)
+                    {
+                        endOfBlock();
+                        return;
+                    }
+                    symbol -= 257;
+                    if (symbol >= LENGTH_BASE.length)
+                    {
+                        throw new ZipException("Invalid length code in gzip file.");
+                    }
+                    int length = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+                    int code = decode(distances);
+                    if (code >= DISTANCE_BASE.length)
+                    {
+                        throw new ZipException("Invalid distance code in gzip file.");
+                    }
+                    int distance = DISTANCE_BASE[code] + bits(DISTANCE_EXTRA[code]);
+                    if (distance > end)
+                    {
+                        throw new ZipException("Invalid distance in gzip file.");
+                    }
+                    for (int i = 0; i < length; i++, end++)
+                    {
+                        output[end] = output[end - distance];
+                    }
+                }
+                return;
+            case TRAILER:
+                align();
+                // crc and size, not checked
+                bits(16);
+                bits(16);
+                bits(16);
+                bits(16);
+                state = State.MEMBER;
+                return;
+            default:
+                return;
+        }
+    }
+
+    private void endOfBlock()
+    {
+        state = lastBlock ? State.TRAILER : State.BLOCK;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException
+    {
+        if (length == 0)
+        {
+            return 0;
+        }
+        while (start == end)
+        {
+            if (state == State.DONE)
+            {
+                return -1;
+            }
+            inflate();
+        }
+        int count = Math.min(length, end - start);
+        System.arraycopy(output, start, bytes, offset, count);
+        start += count;
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    /**
+     * Indicates that all output has been read, and the next output starts a
+     * new deflate block, in the same gzip member. A point from which
+     * inflating can be continued later on.
+     *
+     * @return true at the start of a block
+     */
+    public boolean isAtBlockStart()
+    {
+        return start == end && state == State.BLOCK;
+    }
+
+    /**
+     * The position of the byte containing the next bit of input.
+     *
+     * @return position in the file
+     */
+    public long getInputPosition()
+    {
+        return inputPosition - input.remaining() - (bitCount + 7) / 8;
+    }
+
+    /**
+     * The number of bits of the byte at {@link #getInputPosition() } that
+     * have been used already.
+     *
+     * @return 0 to 7
+     */
+    public int getBitOffset()
+    {
+        return (8 - bitCount % 8) % 8;
+    }
+
+    /**
+     * The last output, which is what the following output can refer back
+     * to.
+     *
+     * @return a copy of the last {@link #WINDOW_SIZE} bytes of output, or
+     * less if there is less.
+     */
+    public byte[] getWindow()
+    {
+        return Arrays.copyOfRange(output, Math.max(0, end - WINDOW_SIZE), end);
+    }
+}
@@ -16,12 +16,32 @@
  */
 package com.tools.jtail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
 import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import joptsimple.OptionException;
 
 /**
  * JTail is my attempt at an implementation of the unix tail command in Java
@@ -40,14 +60,244 @@ public class Jtail
 
     public static final String VERSION = "1.1";
 
+    /**
+     * The TailFiles used in follow mode, one for each file, created once.
+     * Files found later on are added by the watcher, while the readers look
+     * them up.
+     */
+    private static final Map<FileInfo, TailFile> followers = new ConcurrentHashMap<>();
+
+    /**
+     * The filters of the files, with --grep or --exclude, one for each file,
+     * created once.
+     */
+    private static final Map<FileInfo, FilterSink> filters = new ConcurrentHashMap<>();
+
+    /**
+     * Maximum number of files read at the same time, when starting with many
+     * files. Also the maximum number of files that have been read, but are
+     * still waiting for their turn to be written to the output.
+     */
+    private static final int PREFETCH_WINDOW = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Maximum number of bytes of the initial tail of a file that is buffered,
+     * while it waits for its turn to be written to the output.
+     */
+    private static final int PREFETCH_LIMIT = 1024 * 1024;
+
+    /**
+     * Where all output goes.
+     */
+    private static BufferedOutput out;
+
+    /**
+     * Where the positions of the files are kept, null if not required.
+     */
+    private static Checkpoint checkpoint;
+
+    /**
+     * Reads the followed files in parallel, null if they are read by the
+     * watcher itself.
+     */
+    private static FollowerEngine engine;
+
+    /**
+     * The statistics of the files, null if not kept.
+     */
+    private static Statistics statistics;
+
+    /**
+     * Traces the latency of changes, null if not tracing.
+     */
+    private static LatencyTrace trace;
+
     private static void runTail(FileInfo info) throws IOException
     {
         logger.entering(FileSystemWatcher.class.getName(), "runTail");
-        TailFile tailFile = TailFileFactory.createTailFile(info, Options.getBytes(), Options.getLines(), Options.fromBeginning(), Options.showFilenames());
-        tailFile.tail(System.out);
+        followers.get(info).tail(createSink(info, out));
+        if (trace != null)
+        {
+            trace.read(info);
+        }
+        written(info, info.getPosition());
         logger.exiting(FileSystemWatcher.class.getName(), "runTail");
     }
 
+    /**
+     * Outputs the (initial) tail of a file.
+     *
+     * @param info the file
+     * @param out where to write to
+     * @throws IOException if the file could not be read
+     */
+    private static void initialTail(FileInfo info, PrintStream out) throws IOException
+    {
+        TailFile tailFile = TailFileFactory.createTailFile(info, Options.getBytes(), Options.getLines(), Options.fromBeginning(), Options.getEncoding(), checkpoint);
+        ByteSink sink = createSink(info, out);
+        tailFile.tail(sink);
+        if (!Options.follow() && sink instanceof FilterSink)
+        {
+            // the rest of the last line is never going to be read
+            ((FilterSink) sink).flush(info);
+        }
+    }
+
+    /**
+     * Creates the sink for a tail of a file, which writes to the output,
+     * filtering the lines if required.
+     *
+     * @param info the file
+     * @param out where to write to
+     * @return the sink
+     */
+    private static ByteSink createSink(FileInfo info, PrintStream out)
+    {
+        PrintSink sink = new PrintSink(out, Options.showFilenames());
+        if (!Options.filterLines())
+        {
+            return sink;
+        }
+        FilterSink filter = filters.get(info);
+        if (filter == null)
+        {
+            // never created for the same file at the same time
+            filter = new FilterSink(new LineFilter(Options.getGrep(), Options.getExclude(), Charset.defaultCharset()));
+            filters.put(info, filter);
+        }
+        return filter.to(sink);
+    }
+
+    /**
+     * Buffers the initial tail of a file, until it is its turn to be written
+     * to the output. Once more than {@link #PREFETCH_LIMIT} bytes would be
+     * buffered, the reading waits for its turn, and then writes to the output
+     * directly.
+     */
+    private static class PrefetchBuffer extends OutputStream
+    {
+
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        /**
+         * The output, null until it is the turn of the file.
+         */
+        private OutputStream output;
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[]
+            {
+                (byte) b
+            }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            try
+            {
+                while (output == null && buffer.size() + length > PREFETCH_LIMIT)
+                {
+                    wait();
+                }
+            } catch (InterruptedException ex)
+            {
+                throw new InterruptedIOException(ex.getMessage());
+            }
+            if (output == null)
+            {
+                buffer.write(bytes, offset, length);
+            } else
+            {
+                output.write(bytes, offset, length);
+            }
+        }
+
+        /**
+         * It is the turn of the file. Writes what has been buffered so far,
+         * and the rest as soon as it is read.
+         *
+         * @param output where to write to
+         * @throws IOException if the output could not be written
+         */
+        public synchronized void turn(OutputStream output) throws IOException
+        {
+            buffer.writeTo(output);
+            buffer = null;
+            this.output = output;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Outputs the initial tails of all files, in the order provided on the
+     * command line. The files are read in parallel, each into its own
+     * {@link PrefetchBuffer}, and written to the output in order. At most
+     * {@link #PREFETCH_WINDOW} files are read or waiting to be written at any
+     * one time.
+     *
+     * @param fileInfos the files
+     * @throws IOException if a file could not be read
+     */
+    private static void initialTails(List<FileInfo> fileInfos) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(fileInfos.size(), PREFETCH_WINDOW));
+        try
+        {
+            Queue<PrefetchBuffer> buffers = new ArrayDeque<>();
+            Queue<Future<Void>> window = new ArrayDeque<>();
+            int submitted = 0;
+            while (submitted < fileInfos.size() || !window.isEmpty())
+            {
+                while (submitted < fileInfos.size() && window.size() < PREFETCH_WINDOW)
+                {
+                    final FileInfo info = fileInfos.get(submitted++);
+                    final PrefetchBuffer buffer = new PrefetchBuffer();
+                    buffers.add(buffer);
+                    window.add(executor.submit(new Callable<Void>()
+                    {
+
+                        @Override
+                        public Void call() throws Exception
+                        {
+                            try (PrintStream out = new PrintStream(buffer))
+                            {
+                                initialTail(info, out);
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                buffers.remove().turn(out);
+                window.remove().get();
+            }
+        } catch (InterruptedException ex)
+        {
+            throw new InterruptedIOException(ex.getMessage());
+        } catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * @param args the command line arguments
      * @throws IOException if something with wrong with the fileIO. For example,
@@ -67,7 +317,16 @@ public class Jtail
             logger.log(Level.FINEST, "Get current path:{0}", FileSystems.getDefault().getPath(".").toAbsolutePath());
         }
 
-        Options.parse(args);
+        try
+        {
+            Options.parse(args);
+        } catch (OptionException ex)
+        {
+            // a value that could not be converted explains itself best
+            System.err.println("jtail: " + (ex.getCause() == null ? ex.getMessage() : ex.getCause().getMessage()));
+            System.err.println("Try 'jtail --help' for more information.");
+            System.exit(EXIT_HELP);
+        }
 
         if (Options.showVersion())
         {
@@ -91,26 +350,372 @@ public class Jtail
             System.out.println("An appropriate logging.properties file is included in the jar.");
             System.exit(EXIT_HELP);
         }
-        List<FileInfo> fileInfos = new ArrayList<>();
+        out = new BufferedOutput(new FileOutputStream(FileDescriptor.out).getChannel(), Options.getFlush(), Options.getFlushThreshold());
+        try
+        {
+            if (Options.countLines())
+            {
+                countLines();
+            } else
+            {
+                tail();
+            }
+        } finally
+        {
+            saveCheckpoint(true);
+            out.flush();
+        }
+        logger.exiting(Jtail.class.getName(), "main");
+    }
+
+    /**
+     * Ends the output of a change of a file.
+     *
+     * @param info the file
+     * @param position up until where the file has been written
+     * @throws IOException if the output or the checkpoint could not be
+     * written
+     */
+    private static void written(FileInfo info, long position) throws IOException
+    {
+        if (trace != null)
+        {
+            trace.written(info);
+        }
+        out.eventDone();
+        if (checkpoint != null)
+        {
+            checkpoint.written(info, position);
+        }
+        saveCheckpoint(false);
+    }
+
+    /**
+     * Nothing more to output for the moment.
+     *
+     * @throws IOException if the output or the checkpoint could not be
+     * written
+     */
+    private static void idle() throws IOException
+    {
+        out.idle();
+        saveCheckpoint(false);
+    }
+
+    /**
+     * Handles a change detected by the watcher, by handing it to the engine,
+     * or if there is none, tailing the file right away.
+     *
+     * @param info the file that changed
+     * @throws IOException if the file could not be read, or the output not
+     * written
+     */
+    private static void eventDetected(FileInfo info) throws IOException
+    {
+        info.getStatistics().eventReceived();
+        if (trace != null)
+        {
+            trace.detected(info);
+        }
+        if (engine != null)
+        {
+            engine.eventDetected(info);
+        } else
+        {
+            runTail(info);
+        }
+    }
+
+    /**
+     * Starts tracing the latency of changes. As following only ends when
+     * jtail is stopped, the latencies are printed by a shutdown hook.
+     */
+    private static void startTrace()
+    {
+        trace = new LatencyTrace();
+        out.setTrace(trace);
+        trace.register(System.err);
+        Runtime.getRuntime().addShutdownHook(new Thread("jtail trace")
+        {
+
+            @Override
+            public void run()
+            {
+                trace.print(System.err);
+            }
+        });
+    }
+
+    /**
+     * Creates the engine that reads the followed files in parallel, unless
+     * the number of readers is 0.
+     */
+    private static FollowerEngine createEngine()
+    {
+        if (Options.getReaders() == 0)
+        {
+            return null;
+        }
+        return new FollowerEngine(Options.getReaders())
+        {
+
+            @Override
+            protected void tail(FileInfo info, PrintStream out) throws IOException
+            {
+                followers.get(info).tail(createSink(info, out));
+                if (trace != null)
+                {
+                    trace.read(info);
+                }
+            }
+
+            @Override
+            protected void unchanged(FileInfo info)
+            {
+                if (trace != null)
+                {
+                    trace.read(info);
+                }
+            }
+
+            @Override
+            protected void write(FileInfo info, byte[] bytes, int length) throws IOException
+            {
+                out.write(bytes, 0, length);
+            }
+
+            @Override
+            protected void written(FileInfo info, long position) throws IOException
+            {
+                Jtail.written(info, position);
+            }
+
+            @Override
+            protected void idle() throws IOException
+            {
+                Jtail.idle();
+            }
+        };
+    }
+
+    /**
+     * Saves the positions of the files, if a checkpoint is used. The output
+     * is flushed first, so the saved positions are never ahead of it.
+     *
+     * @param force save now, even if the last save was less than
+     * {@link Checkpoint#SAVE_INTERVAL} ago.
+     * @throws IOException if the output or the checkpoint could not be
+     * written
+     */
+    private static void saveCheckpoint(boolean force) throws IOException
+    {
+        if (checkpoint != null && (force || checkpoint.isDue()))
+        {
+            out.flush();
+            checkpoint.save();
+        }
+    }
+
+    /**
+     * The filenames on the command line, with every directory or file name
+     * pattern replaced by the files that match.
+     *
+     * @param watched is filled with the directories and patterns
+     * @return the names of the files
+     * @throws IOException if a directory could not be read
+     */
+    private static List<String> expand(List<WatchedDirectory> watched) throws IOException
+    {
+        List<String> filenames = new ArrayList<>();
         for (String filename : Options.files())
+        {
+            if (!WatchedDirectory.isPattern(filename))
+            {
+                filenames.add(filename);
+                continue;
+            }
+            WatchedDirectory directory = WatchedDirectory.create(filename, Options.getGlob(), Options.recursive());
+            watched.add(directory);
+            for (Path file : directory.listAll())
+            {
+                filenames.add(file.toString());
+            }
+        }
+        return filenames;
+    }
+
+    /**
+     * Starts following a file found in a watched directory after starting,
+     * from the beginning.
+     *
+     * @param info the new file
+     */
+    private static void discovered(FileInfo info) throws IOException
+    {
+        openIndex(info);
+        if (statistics != null)
+        {
+            statistics.add(info);
+        }
+        followers.put(info, TailFileFactory.createFollower(info, Options.getEncoding()));
+    }
+
+    /**
+     * Opens the index of a file, if indexes are used. A gzip file gets an
+     * index of access points instead of line offsets.
+     *
+     * @param info the file
+     * @throws IOException if the index could not be read
+     */
+    private static void openIndex(FileInfo info) throws IOException
+    {
+        if (!Options.useIndex())
+        {
+            return;
+        }
+        if (info.isGzip())
+        {
+            info.setGzipIndex(GzipIndex.open(info.getFile()));
+        } else
+        {
+            info.setLineIndex(LineIndex.open(info.getFile()));
+        }
+    }
+
+    /**
+     * Prints the number of newlines and bytes of every file, and the total if
+     * there is more than one file, in the same layout as wc -lc.
+     *
+     * @throws IOException if a file could not be read
+     */
+    private static void countLines() throws IOException
+    {
+        List<long[]> counts = new ArrayList<>();
+        long[] total = new long[2];
+        List<String> filenames = expand(new ArrayList<WatchedDirectory>());
+        for (String filename : filenames)
+        {
+            try (FileInfo info = new FileInfo(filename))
+            {
+                long newlines;
+                openIndex(info);
+                if (info.getLineIndex() != null)
+                {
+                    info.getLineIndex().update(info);
+                    newlines = info.getLineIndex().getNewlines();
+                } else
+                {
+                    newlines = NewlineScanner.count(info.getChannel(), 0, info.getSize());
+                }
+                long[] count =
+                {
+                    newlines, info.getSize()
+                };
+                counts.add(count);
+                total[0] += count[0];
+                total[1] += count[1];
+            }
+        }
+        if (counts.size() > 1)
+        {
+            counts.add(total);
+            filenames.add("total");
+        }
+        int width = Long.toString(total[1]).length();
+        String format = "%" + width + "d %" + width + "d %s%n";
+        for (int i = 0; i < counts.size(); i++)
+        {
+            out.printf(format, counts.get(i)[0], counts.get(i)[1], filenames.get(i));
+        }
+    }
+
+    /**
+     * Outputs the initial tails, and if required, follows the files.
+     *
+     * @throws IOException if something with wrong with the fileIO.
+     */
+    private static void tail() throws IOException
+    {
+        List<FileInfo> fileInfos = new ArrayList<>();
+        if (Options.getCheckpoint() != null)
+        {
+            checkpoint = new Checkpoint(Options.getCheckpoint());
+        }
+        if (Options.statistics())
+        {
+            statistics = new Statistics();
+        }
+        List<WatchedDirectory> watched = new ArrayList<>();
+        for (String filename : expand(watched))
         {
             FileInfo info = new FileInfo(filename);
-            TailFile tailFile = TailFileFactory.createTailFile(info, Options.getBytes(), Options.getLines(), Options.fromBeginning(), Options.showFilenames());
-            tailFile.tail(System.out);
+            openIndex(info);
+            if (statistics != null)
+            {
+                statistics.add(info);
+            }
             fileInfos.add(info);
         }
+        if (fileInfos.size() > 1 && !Options.fromBeginning())
+        {
+            // read ahead, buffering at most PREFETCH_LIMIT bytes of each file
+            initialTails(fileInfos);
+        } else
+        {
+            for (FileInfo info : fileInfos)
+            {
+                initialTail(info, out);
+            }
+        }
+        if (checkpoint != null)
+        {
+            for (FileInfo info : fileInfos)
+            {
+                checkpoint.written(info, info.getPosition());
+            }
+        }
         if (!Options.follow())
         {
+            for (FileInfo info : fileInfos)
+            {
+                info.close();
+            }
+            logger.log(Level.FINE, "Stat calls:{0}", FileInfo.getStatCalls());
+            if (statistics != null)
+            {
+                out.flush();
+                statistics.print(System.err);
+            }
             return;
         }
+        if (Options.trace())
+        {
+            startTrace();
+        }
         logger.log(Level.FINER, "Create watcher");
-        Watcher watcher = (Options.usePolling() ? new PollingWatcher()
+        engine = createEngine();
+        final Watcher watcher = (Options.usePolling() ? new PollingWatcher()
         {
 
             @Override
             public void eventDetected(FileInfo info) throws IOException
             {
-                runTail(info);
+                Jtail.eventDetected(info);
+            }
+
+            @Override
+            public void idle() throws IOException
+            {
+                if (engine == null)
+                {
+                    Jtail.idle();
+                }
+            }
+
+            @Override
+            public void discovered(FileInfo info) throws IOException
+            {
+                Jtail.discovered(info);
             }
 
         } : new FileSystemWatcher()
@@ -119,15 +724,116 @@ public class Jtail
             @Override
             public void eventDetected(FileInfo info) throws IOException
             {
-                runTail(info);
+                Jtail.eventDetected(info);
+            }
+
+            @Override
+            public void idle() throws IOException
+            {
+                if (engine == null)
+                {
+                    Jtail.idle();
+                }
+            }
+
+            @Override
+            public void discovered(FileInfo info) throws IOException
+            {
+                Jtail.discovered(info);
             }
         });
         for (FileInfo info : fileInfos)
         {
             logger.log(Level.FINER, "Watch filename {0}.", info.getFilename());
+            followers.put(info, TailFileFactory.createFollower(info, Options.getEncoding()));
             watcher.watch(info);
         }
+        for (WatchedDirectory directory : watched)
+        {
+            logger.log(Level.FINER, "Watch directory {0}.", directory);
+            watcher.watch(directory);
+        }
+        if (statistics != null)
+        {
+            statistics.setWatcher(watcher);
+            statistics.start(Options.statisticsMillis(), System.err);
+        }
+        if (Options.pid() != null)
+        {
+            stopOnExit(Options.pid(), watcher);
+        }
         watcher.startWatching();
-        logger.exiting(Jtail.class.getName(), "main");
+        // only returns when stopped, after the process of --pid has ended
+        drain();
+    }
+
+    /**
+     * Stops the watcher as soon as a process ends. The process is not
+     * polled, but waited for by {@link ProcessHandle#onExit() }.
+     *
+     * @param pid the process ID
+     * @param watcher the watcher to stop
+     */
+    private static void stopOnExit(long pid, final Watcher watcher)
+    {
+        Optional<ProcessHandle> process = ProcessHandle.of(pid);
+        if (!process.isPresent() || !process.get().isAlive())
+        {
+            logger.log(Level.FINE, "Process {0} is not running.", pid);
+            watcher.stop();
+            return;
+        }
+        process.get().onExit().thenRun(new Runnable()
+        {
+
+            @Override
+            public void run()
+            {
+                logger.log(Level.FINE, "Process ended, stop watching.");
+                watcher.stop();
+            }
+        });
+    }
+
+    /**
+     * Reads the followed files one last time, as the watcher might not have
+     * noticed their last changes yet, outputs what was read, and closes the
+     * files.
+     *
+     * @throws IOException if a file could not be read, or the output not
+     * written
+     */
+    private static void drain() throws IOException
+    {
+        List<FileInfo> fileInfos = new ArrayList<>(followers.keySet());
+        for (FileInfo info : fileInfos)
+        {
+            try
+            {
+                info.refresh();
+            } catch (NoSuchFileException ex)
+            {
+                logger.log(Level.FINE, "File {0} is missing.", info.getFilename());
+                continue;
+            }
+            if (info.isChanged())
+            {
+                eventDetected(info);
+            }
+        }
+        if (engine != null)
+        {
+            engine.drain();
+        }
+        for (FileInfo info : fileInfos)
+        {
+            info.close();
+        }
+        if (statistics != null)
+        {
+            statistics.close();
+            out.flush();
+            statistics.print(System.err);
+        }
     }
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Counts durations in nanoseconds, from a nanosecond up to days, in buckets
+ * that are at most about 3% wide, like an HdrHistogram with two significant
+ * digits. Every power of two is divided into {@link #SUB_BUCKETS} buckets of
+ * equal width, so the memory used is fixed, whatever is recorded.</p>
+ * <p>
+ * Recording is lock free, and can be done from any thread, while the
+ * histogram is being read. The percentiles read are then approximately
+ * right.</p>
+ * <img src="../../../images/LatencyHistogram.png"/>
+ *
+ * @startuml
+ * LatencyHistogram : +record(nanos: long)
+ * LatencyHistogram : +getCount(): long
+ * LatencyHistogram : +getMax(): long
+ * LatencyHistogram : +getMean(): long
+ * LatencyHistogram : +getValueAtPercentile(percentile: double): long
+ * LatencyHistogram : +{static} format(nanos: long): String
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class LatencyHistogram
+{
+
+    /**
+     * Number of buckets every power of two is divided into.
+     */
+    public static final int SUB_BUCKETS = 32;
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * The bucket of a value. Values below {@link #SUB_BUCKETS} have a bucket
+     * of their own, above that the bucket is found by the highest
+     * {@link #SUB_BUCKET_BITS} + 1 bits.
+     */
+    private static int index(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int top = (int) (value >>> (exponent - SUB_BUCKET_BITS));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + top - SUB_BUCKETS;
+    }
+
+    /**
+     * The highest value that ends up in a bucket.
+     */
+    private static long highest(int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long top = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Adds a duration.
+     *
+     * @param nanos the duration in nanoseconds, negative durations count as 0
+     */
+    public void record(long nanos)
+    {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+        {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * @return the longest duration recorded, in nanoseconds
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * @return the mean duration, in nanoseconds, 0 if nothing was recorded
+     */
+    public long getMean()
+    {
+        long recorded = count.get();
+        return recorded == 0 ? 0 : sum.get() / recorded;
+    }
+
+    /**
+     * The duration that the percentile of the durations recorded does not
+     * exceed.
+     *
+     * @param percentile for example 99.0
+     * @return the duration in nanoseconds, within about 3%, 0 if nothing was
+     * recorded
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long recorded = count.get();
+        if (recorded == 0)
+        {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(recorded * Math.min(100.0, percentile) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            seen += counts.get(i);
+            if (seen >= wanted)
+            {
+                return Math.min(highest(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Formats a duration for people, like 850us or 12.5ms.
+     *
+     * @param nanos the duration in nanoseconds
+     * @return the duration with a unit
+     */
+    public static String format(long nanos)
+    {
+        if (nanos < 1000l)
+        {
+            return nanos + "ns";
+        }
+        if (nanos < 1000000l)
+        {
+            return nanos / 1000l + "us";
+        }
+        if (nanos < 1000000000l)
+        {
+            return String.format("%.1fms", nanos / 1000000.0);
+        }
+        return String.format("%.2fs", nanos / 1000000000.0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "count " + getCount() + ", p50 " + format(getValueAtPercentile(50.0))
+                + ", p99 " + format(getValueAtPercentile(99.0))
+                + ", p99.9 " + format(getValueAtPercentile(99.9))
+                + ", max " + format(getMax());
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * Traces how long it takes for a change of a file to reach the output, for
+ * --trace. Every change is timestamped when the watcher detects it, when
+ * {@link TailFile#tail(ByteSink) } has read it, and when the output
+ * containing it has been flushed. The time between these is recorded in
+ * {@link LatencyHistogram}s, together with the time between the last
+ * modification of the file and its detection:</p>
+ * <ul>
+ * <li>modified to detected: delivery of the event by the operating system,
+ * or the polling interval. Modification times are as precise as the
+ * filesystem keeps them, which is often a clock tick of a few
+ * milliseconds</li>
+ * <li>detected to read: waiting for a reader, and reading</li>
+ * <li>read to flushed: waiting for the writer, the flush policy, and the
+ * output accepting it</li>
+ * <li>detected to flushed: all of it, apart from the delivery</li>
+ * </ul>
+ * <p>
+ * Changes detected before the previous one has been read are traced from the
+ * first detection. The histograms are printed to standard error when jtail
+ * ends. While following, they are available with JMX, which can also have
+ * them printed, see {@link LatencyTraceMBean}.</p>
+ * <img src="../../../images/LatencyTrace.png"/>
+ *
+ * @startuml
+ * LatencyTrace : +detected(info: FileInfo)
+ * LatencyTrace : +read(info: FileInfo)
+ * LatencyTrace : +written(info: FileInfo)
+ * LatencyTrace : +flushed()
+ * LatencyTrace : +print(out: PrintStream)
+ * LatencyTrace : +register(out: PrintStream)
+ * LatencyTraceMBean <|-- LatencyTrace
+ * LatencyTrace --> "4" LatencyHistogram
+ * LatencyTrace +-- Stamp
+ * BufferedOutput --> LatencyTrace
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class LatencyTrace implements LatencyTraceMBean
+{
+
+    private static final Logger logger = Logger.getLogger(LatencyTrace.class.getName());
+
+    private final LatencyHistogram modifiedToDetected = new LatencyHistogram();
+
+    private final LatencyHistogram detectedToRead = new LatencyHistogram();
+
+    private final LatencyHistogram readToFlushed = new LatencyHistogram();
+
+    private final LatencyHistogram detectedToFlushed = new LatencyHistogram();
+
+    /**
+     * The changes detected, but not written yet, by file.
+     */
+    private final Map<FileInfo, Stamp> detected = new ConcurrentHashMap<>();
+
+    /**
+     * The changes written, but not flushed yet.
+     */
+    private final Queue<Stamp> written = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Where {@link #print() } prints to, null until registered.
+     */
+    private volatile PrintStream out;
+
+    /**
+     * The times of a change, in nanoseconds of {@link System#nanoTime() }.
+     */
+    private static class Stamp
+    {
+
+        private final long detected;
+
+        /**
+         * 0 until read.
+         */
+        private volatile long read;
+
+        private Stamp(long detected)
+        {
+            this.detected = detected;
+        }
+    }
+
+    /**
+     * A change of a file was detected by the watcher, which has just
+     * refreshed the file.
+     *
+     * @param info the file
+     */
+    public void detected(FileInfo info)
+    {
+        Stamp stamp = new Stamp(System.nanoTime());
+        if (detected.putIfAbsent(info, stamp) != null)
+        {
+            // the earlier change has not been read yet
+            return;
+        }
+        long delivery = Duration.between(info.getLastModified().toInstant(), Instant.now()).toNanos();
+        if (delivery >= 0)
+        {
+            modifiedToDetected.record(delivery);
+        }
+    }
+
+    /**
+     * The changes of a file have been read.
+     *
+     * @param info the file
+     */
+    public void read(FileInfo info)
+    {
+        Stamp stamp = detected.get(info);
+        if (stamp != null && stamp.read == 0)
+        {
+            stamp.read = System.nanoTime();
+            detectedToRead.record(stamp.read - stamp.detected);
+        }
+    }
+
+    /**
+     * What was read of the changes of a file has been written to the output,
+     * which might buffer it.
+     *
+     * @param info the file
+     */
+    public void written(FileInfo info)
+    {
+        Stamp stamp = detected.get(info);
+        if (stamp != null && stamp.read != 0)
+        {
+            detected.remove(info, stamp);
+            written.add(stamp);
+        }
+    }
+
+    /**
+     * The output has been flushed, so all changes written have reached it.
+     */
+    public void flushed()
+    {
+        long now = System.nanoTime();
+        Stamp stamp;
+        while ((stamp = written.poll()) != null)
+        {
+            readToFlushed.record(now - stamp.read);
+            detectedToFlushed.record(now - stamp.detected);
+        }
+    }
+
+    /**
+     * Prints the histograms.
+     *
+     * @param out where to print to
+     */
+    public void print(PrintStream out)
+    {
+        String separator = System.lineSeparator();
+        out.print("jtail: modified to detected: " + modifiedToDetected + separator
+                + "jtail: detected to read: " + detectedToRead + separator
+                + "jtail: read to flushed: " + readToFlushed + separator
+                + "jtail: detected to flushed: " + detectedToFlushed + separator);
+        out.flush();
+    }
+
+    /**
+     * Registers the trace as an MBean, so the histograms can be watched with
+     * jconsole or any other JMX client, and printed on request.
+     *
+     * @param out where {@link #print() } prints to
+     */
+    public void register(PrintStream out)
+    {
+        this.out = out;
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(Statistics.DOMAIN + ":type=LatencyTrace"));
+        } catch (JMException ex)
+        {
+            logger.log(Level.WARNING, "Could not register the latencies with JMX.", ex);
+        }
+    }
+
+    @Override
+    public void print()
+    {
+        PrintStream current = out;
+        if (current != null)
+        {
+            print(current);
+        }
+    }
+
+    @Override
+    public String getModifiedToDetected()
+    {
+        return modifiedToDetected.toString();
+    }
+
+    @Override
+    public String getDetectedToRead()
+    {
+        return detectedToRead.toString();
+    }
+
+    @Override
+    public String getReadToFlushed()
+    {
+        return readToFlushed.toString();
+    }
+
+    @Override
+    public String getDetectedToFlushed()
+    {
+        return detectedToFlushed.toString();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+/**
+ * The latencies traced with --trace, as exposed by JMX, under the name
+ * <code>com.tools.jtail:type=LatencyTrace</code>.
+ * <img src="../../../images/LatencyTraceMBean.png"/>
+ *
+ * @startuml
+ * interface LatencyTraceMBean
+ * LatencyTraceMBean <|-- LatencyTrace
+ * @enduml
+ *
+ * @author maartenl
+ */
+public interface LatencyTraceMBean
+{
+
+    /**
+     * @return the percentiles of the time between the last modification of a
+     * file and its detection
+     */
+    public String getModifiedToDetected();
+
+    /**
+     * @return the percentiles of the time between detecting a change and
+     * having read it
+     */
+    public String getDetectedToRead();
+
+    /**
+     * @return the percentiles of the time between reading a change and the
+     * output containing it being flushed
+     */
+    public String getReadToFlushed();
+
+    /**
+     * @return the percentiles of the time between detecting a change and the
+     * output containing it being flushed
+     */
+    public String getDetectedToFlushed();
+
+    /**
+     * Prints the percentiles to standard error, like at the end.
+     */
+    public void print();
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Decides which lines to output, like <code>grep PATTERN</code> and
+ * <code>grep -v PATTERN</code> would.</p>
+ * <p>
+ * Most regular expressions contain a literal that every match must contain,
+ * like "ERROR" in <code>ERROR.*timeout</code>. That literal is searched for
+ * in the bytes of a line first, using a {@link LiteralSearch}, and only lines
+ * containing it are decoded and matched against the regular expression. If
+ * the regular expression is nothing but a literal, it is not used at all.
+ * Lines are decoded into a reused CharBuffer, never into Strings.</p>
+ * <p>
+ * Not thread safe, every file has its own.</p>
+ * <img src="../../../images/LineFilter.png"/>
+ *
+ * @startuml
+ * LineFilter : +LineFilter(grep: Pattern, exclude: Pattern, charset: Charset)
+ * LineFilter : +accept(line: ByteBuffer): boolean
+ * LineFilter : ~{static} literal(regex: String): String
+ * LineFilter --> "0..2" LiteralSearch
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class LineFilter
+{
+
+    /**
+     * Characters that have a special meaning when not escaped, apart from
+     * groups, classes and quantifiers.
+     */
+    private static final String SPECIAL = ".^$";
+
+    /**
+     * Escapes that are followed by an operand, like \x41 or \p{Lu}.
+     */
+    private static final String OPERANDS = "xuckpPN";
+
+    private final Expression grep;
+
+    private final Expression exclude;
+
+    private final Charset charset;
+
+    private final CharsetDecoder decoder;
+
+    private CharBuffer chars = CharBuffer.allocate(256);
+
+    /**
+     * A regular expression, and the literal every match contains.
+     */
+    private class Expression
+    {
+
+        private final Matcher matcher;
+
+        /**
+         * Null if there is no such literal.
+         */
+        private final LiteralSearch search;
+
+        /**
+         * The regular expression is only the literal.
+         */
+        private final boolean exact;
+
+        private Expression(Pattern pattern)
+        {
+            this.matcher = pattern.matcher("");
+            String literal = pattern.flags() == 0 ? literal(pattern.pattern()) : null;
+            this.search = literal == null ? null : new LiteralSearch(literal.getBytes(charset));
+            this.exact = literal != null && literal.equals(pattern.pattern());
+        }
+
+        private boolean find(ByteBuffer line)
+        {
+            if (search != null && search.indexOf(line) == -1)
+            {
+                return false;
+            }
+            if (exact)
+            {
+                return true;
+            }
+            return matcher.reset(decode(line)).find();
+        }
+    }
+
+    /**
+     * @param grep only lines matching this are accepted, null to accept all
+     * lines
+     * @param exclude lines matching this are not accepted, may be null
+     * @param charset the encoding of the lines
+     */
+    public LineFilter(Pattern grep, Pattern exclude, Charset charset)
+    {
+        this.charset = charset;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.grep = grep == null ? null : new Expression(grep);
+        this.exclude = exclude == null ? null : new Expression(exclude);
+    }
+
+    private CharBuffer decode(ByteBuffer line)
+    {
+        int required = (int) Math.ceil(line.remaining() * (double) decoder.maxCharsPerByte());
+        if (chars.capacity() < required)
+        {
+            chars = CharBuffer.allocate(Math.max(required, chars.capacity() * 2));
+        }
+        chars.clear();
+        decoder.reset();
+        decoder.decode(line.duplicate(), chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars;
+    }
+
+    /**
+     * Indicates that a line is to be output.
+     *
+     * @param line the line, without its newline, from position to limit. Is
+     * left as it is.
+     * @return true if it matches grep, and does not match exclude
+     */
+    public boolean accept(ByteBuffer line)
+    {
+        if (grep != null && !grep.find(line))
+        {
+            return false;
+        }
+        return exclude == null || !exclude.find(line);
+    }
+
+    /**
+     * Finds the longest literal that every match of the regular expression
+     * contains. Only the top level of the expression is looked at, groups
+     * and character classes are skipped. Expressions with alternatives at the
+     * top level, flags, quoting, back references, or escapes with an operand
+     * like \x41, have no such literal.
+     *
+     * @param regex the regular expression
+     * @return the literal, or null if there is none.
+     */
+    static String literal(String regex)
+    {
+        if (regex.contains("(?") || regex.contains("\\Q"))
+        {
+            return null;
+        }
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int i = 0;
+        while (i < regex.length())
+        {
+            char c = regex.charAt(i);
+            if (c == '\\')
+            {
+                if (i + 1 == regex.length())
+                {
+                    return null;
+                }
+                char escaped = regex.charAt(i + 1);
+                i += 2;
+                if (Character.isDigit(escaped) || OPERANDS.indexOf(escaped) != -1)
+                {
+                    // an octal escape, a back reference with as many digits
+                    // as there are groups, or an operand of unknown length
+                    return null;
+                }
+                if (Character.isLetterOrDigit(escaped))
+                {
+                    // a class like \d, or a character like \t
+                    longest = longest(longest, run);
+                    continue;
+                }
+                run.append(escaped);
+                continue;
+            }
+            if (c == '|')
+            {
+                return null;
+            }
+            if (c == '(' || c == '[')
+            {
+                longest = longest(longest, run);
+                i = skip(regex, i);
+                if (i == -1)
+                {
+                    return null;
+                }
+                continue;
+            }
+            if (c == '?' || c == '*' || c == '{')
+            {
+                // the character before is optional
+                if (run.length() > 0)
+                {
+                    run.setLength(run.length() - 1);
+                }
+                longest = longest(longest, run);
+                i = c == '{' ? regex.indexOf('}', i) : i + 1;
+                if (i == -1)
+                {
+                    return null;
+                }
+                if (c == '{')
+                {
+                    i++;
+                }
+                continue;
+            }
+            if (c == '+' || SPECIAL.indexOf(c) != -1)
+            {
+                // with +, the character before is required, but what follows
+                // might not be right after it
+                longest = longest(longest, run);
+                i++;
+                continue;
+            }
+            run.append(c);
+            i++;
+        }
+        longest = longest(longest, run);
+        return longest.isEmpty() ? null : longest;
+    }
+
+    /**
+     * Ends a run of literal characters.
+     */
+    private static String longest(String longest, StringBuilder run)
+    {
+        String result = run.length() > longest.length() ? run.toString() : longest;
+        run.setLength(0);
+        return result;
+    }
+
+    /**
+     * Skips a group or a character class, including nested ones.
+     *
+     * @return the index after it, or -1 if it is not closed.
+     */
+    private static int skip(String regex, int i)
+    {
+        int groups = 0;
+        int classes = 0;
+        while (i < regex.length())
+        {
+            char c = regex.charAt(i);
+            if (c == '\\')
+            {
+                i += 2;
+                continue;
+            }
+            if (classes > 0)
+            {
+                if (c == '[')
+                {
+                    classes++;
+                } else if (c == ']')
+                {
+                    classes--;
+                }
+            } else if (c == '[')
+            {
+                classes++;
+                // a ] right at the start, or after the ^, is part of the class
+                if (regex.startsWith("^]", i + 1))
+                {
+                    i += 2;
+                } else if (regex.startsWith("]", i + 1))
+                {
+                    i++;
+                }
+            } else if (c == '(')
+            {
+                groups++;
+            } else if (c == ')')
+            {
+                groups--;
+            }
+            i++;
+            if (groups == 0 && classes == 0)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * A sparse index of line offsets, stored next to the file as
+ * <i>filename</i>.jtailidx. Every {@link #INTERVAL} lines, the offset where
+ * the next line starts is recorded, so a line can be found by seeking to the
+ * closest entry before it and skipping less than {@link #INTERVAL} lines.</p>
+ * <p>
+ * The sidecar starts with a header of {@link #HEADER_SIZE} bytes, followed by
+ * the entries, 8 bytes each. The header records the file key, the number of
+ * bytes indexed, the modification time and a checksum of the last indexed
+ * bytes. If the file no longer matches those, the index is rebuilt. When the
+ * file grows, only the new part is scanned, and new entries are appended to
+ * the sidecar.</p>
+ * <img src="../../../images/LineIndex.png"/>
+ *
+ * @startuml
+ * LineIndex : +{static} open(file: Path): LineIndex
+ * LineIndex : +update(info: FileInfo)
+ * LineIndex : +getNewlines(): long
+ * LineIndex : +skipLines(channel: FileChannel, lines: long, end: long): long
+ * LineIndex : +close()
+ * FileInfo --> LineIndex
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class LineIndex
+{
+
+    private static final Logger logger = Logger.getLogger(LineIndex.class.getName());
+
+    /**
+     * Number of lines between two entries of the index.
+     */
+    public static final int INTERVAL = 64 * 1024;
+
+    /**
+     * Size of the header of the sidecar file.
+     */
+    public static final int HEADER_SIZE = 64;
+
+    /**
+     * Extension of the sidecar file.
+     */
+    public static final String EXTENSION = ".jtailidx";
+
+    private static final int MAGIC = 0x4a544958; // JTIX
+
+    private static final int VERSION = 1;
+
+    /**
+     * The number of bytes at the end of the indexed part that are checksummed.
+     */
+    private static final int CHECKSUM_SIZE = 4096;
+
+    /**
+     * Buffer size of 64k.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path sidecar;
+
+    /**
+     * Hash of the file key of the file that was indexed.
+     */
+    private long fileKey;
+
+    /**
+     * Number of bytes of the file that have been indexed.
+     */
+    private long indexed;
+
+    /**
+     * Number of newlines after the last entry, up to indexed.
+     */
+    private long newlinesAfterLastEntry;
+
+    private long lastModified;
+
+    private long checksum;
+
+    /**
+     * Offset of the start of line INTERVAL * (i + 1), counting from 0.
+     */
+    private long[] entries = new long[16];
+
+    private int size;
+
+    /**
+     * Number of entries already stored in the sidecar.
+     */
+    private int stored;
+
+    /**
+     * The index in memory has not been compared to the file yet.
+     */
+    private boolean validated;
+
+    /**
+     * False once writing the sidecar failed, for example because the
+     * directory is read only. The index is then only kept in memory.
+     */
+    private boolean persistent = true;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private LineIndex(Path sidecar)
+    {
+        this.sidecar = sidecar;
+    }
+
+    /**
+     * Reads the index of the file from its sidecar file, if it exists. It is
+     * only validated against the file on the first {@link #update(FileInfo)}.
+     *
+     * @param file the file that is indexed, not the sidecar.
+     * @return the index, possibly empty
+     * @throws IOException if the sidecar exists, but could not be read
+     */
+    public static LineIndex open(Path file) throws IOException
+    {
+        LineIndex index = new LineIndex(Paths.get(file.toString() + EXTENSION));
+        try (FileChannel channel = FileChannel.open(index.sidecar, StandardOpenOption.READ))
+        {
+            index.read(channel);
+        } catch (NoSuchFileException ex)
+        {
+            logger.log(Level.FINEST, "No index {0} yet.", index.sidecar);
+        }
+        return index;
+    }
+
+    private void read(FileChannel channel) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION
+                || header.getInt() != INTERVAL)
+        {
+            logger.log(Level.INFO, "Ignoring index {0}, unknown format.", sidecar);
+            return;
+        }
+        header.getInt();
+        fileKey = header.getLong();
+        indexed = header.getLong();
+        newlinesAfterLastEntry = header.getLong();
+        lastModified = header.getLong();
+        checksum = header.getLong();
+        long count = header.getLong();
+        if (count < 0 || count > (channel.size() - HEADER_SIZE) / 8)
+        {
+            logger.log(Level.INFO, "Ignoring index {0}, corrupt.", sidecar);
+            reset();
+            return;
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) count * 8);
+        readFully(channel, data, HEADER_SIZE);
+        data.flip();
+        if (data.remaining() != count * 8)
+        {
+            logger.log(Level.INFO, "Ignoring index {0}, incomplete.", sidecar);
+            reset();
+            return;
+        }
+        entries = new long[Math.max(16, (int) count)];
+        data.asLongBuffer().get(entries, 0, (int) count);
+        size = (int) count;
+        stored = (int) count;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) == -1)
+            {
+                break;
+            }
+        }
+    }
+
+    private void reset()
+    {
+        indexed = 0;
+        newlinesAfterLastEntry = 0;
+        size = 0;
+        stored = 0;
+    }
+
+    private static long hash(Object fileKey)
+    {
+        if (fileKey == null)
+        {
+            return 0;
+        }
+        String key = fileKey.toString();
+        long hash = 1125899906842597L;
+        for (int i = 0; i < key.length(); i++)
+        {
+            hash = 31 * hash + key.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Checksum of the last indexed bytes, to find out if they are still the
+     * same bytes, for example after a file has been truncated and written
+     * again.
+     */
+    private long checksum(FileChannel channel, long end) throws IOException
+    {
+        long start = Math.max(0, end - CHECKSUM_SIZE);
+        buffer.clear();
+        buffer.limit((int) (end - start));
+        readFully(channel, buffer, start);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        return crc.getValue();
+    }
+
+    /**
+     * The index still applies to the file, or at least to the first indexed
+     * bytes of it.
+     */
+    private boolean isValid(FileInfo info, FileChannel channel) throws IOException
+    {
+        if (fileKey != hash(info.getFileKey()) || info.getSize() < indexed)
+        {
+            return false;
+        }
+        long modified = info.getLastModified().toMillis();
+        if (info.getSize() == indexed ? modified != lastModified : modified < lastModified)
+        {
+            return false;
+        }
+        return checksum == checksum(channel, indexed);
+    }
+
+    /**
+     * Brings the index up to date with the file, using the attributes of the
+     * last {@link FileInfo#refresh() }. An index that no longer matches the
+     * file is rebuilt. Otherwise only the part of the file that was not
+     * indexed yet is scanned.
+     *
+     * @param info the file
+     * @throws IOException if the file could not be read
+     */
+    public void update(FileInfo info) throws IOException
+    {
+        FileChannel channel = info.getChannel();
+        if (!validated || hash(info.getFileKey()) != fileKey || info.getSize() < indexed)
+        {
+            if (!isValid(info, channel))
+            {
+                logger.log(Level.FINE, "Rebuilding index {0}.", sidecar);
+                reset();
+                fileKey = hash(info.getFileKey());
+            }
+            validated = true;
+        }
+        long end = info.getSize();
+        if (end == indexed)
+        {
+            return;
+        }
+        scan(channel, end);
+        lastModified = info.getLastModified().toMillis();
+        checksum = checksum(channel, indexed);
+        if (stored != size)
+        {
+            store();
+        }
+    }
+
+    /**
+     * Scans from indexed up until end, adding an entry every
+     * {@link #INTERVAL} lines.
+     */
+    private void scan(FileChannel channel, long end) throws IOException
+    {
+        byte[] array = buffer.array();
+        while (indexed < end)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, end - indexed));
+            int length = channel.read(buffer, indexed);
+            if (length <= 0)
+            {
+                break;
+            }
+            long newlines = NewlineScanner.count(buffer, 0, length);
+            if (newlinesAfterLastEntry + newlines < INTERVAL)
+            {
+                newlinesAfterLastEntry += newlines;
+            } else
+            {
+                for (int i = 0; i < length; i++)
+                {
+                    if (array[i] == '\n' && ++newlinesAfterLastEntry == INTERVAL)
+                    {
+                        add(indexed + i + 1);
+                        newlinesAfterLastEntry = 0;
+                    }
+                }
+            }
+            indexed += length;
+        }
+    }
+
+    private void add(long offset)
+    {
+        if (size == entries.length)
+        {
+            entries = Arrays.copyOf(entries, size * 2);
+        }
+        entries[size++] = offset;
+    }
+
+    /**
+     * Appends the new entries to the sidecar, and then rewrites the header.
+     * Until the header has been written, the new entries are ignored by
+     * {@link #open(Path)}.
+     */
+    private void store()
+    {
+        if (!persistent)
+        {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(sidecar, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+        {
+            ByteBuffer data = ByteBuffer.allocate((size - stored) * 8);
+            data.asLongBuffer().put(entries, stored, size - stored);
+            while (data.hasRemaining())
+            {
+                channel.write(data, HEADER_SIZE + stored * 8L + data.position());
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(INTERVAL).putInt(0);
+            header.putLong(fileKey).putLong(indexed).putLong(newlinesAfterLastEntry);
+            header.putLong(lastModified).putLong(checksum).putLong(size);
+            header.flip();
+            while (header.hasRemaining())
+            {
+                channel.write(header, header.position());
+            }
+            channel.truncate(HEADER_SIZE + size * 8L);
+            stored = size;
+        } catch (IOException ex)
+        {
+            logger.log(Level.INFO, "Could not write index " + sidecar + ", keeping it in memory only.", ex);
+            persistent = false;
+        }
+    }
+
+    /**
+     * The number of newlines in the indexed part of the file.
+     *
+     * @return number of newlines
+     */
+    public long getNewlines()
+    {
+        return (long) size * INTERVAL + newlinesAfterLastEntry;
+    }
+
+    /**
+     * Skips a number of lines from the beginning of the file, starting at the
+     * closest entry of the index.
+     *
+     * @param channel the file
+     * @param lines the number of lines to skip
+     * @param end the size of the file
+     * @return the position directly after the last newline skipped, or end if
+     * there are not that many lines.
+     * @throws IOException if the file could not be read
+     */
+    public long skipLines(FileChannel channel, long lines, long end) throws IOException
+    {
+        int entry = (int) Math.min(size, lines / INTERVAL);
+        long position = entry == 0 ? 0 : entries[entry - 1];
+        return NewlineScanner.skipLines(channel, position, end, lines - (long) entry * INTERVAL);
+    }
+
+    /**
+     * Writes the index as far as it has been updated, including the newlines
+     * after the last entry, so the next start does not have to scan them
+     * again.
+     */
+    public void close()
+    {
+        if (validated && indexed > 0)
+        {
+            store();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return Objects.toString(sidecar);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives what is tailed from files, line by line. Use a
+ * {@link LineSplitter} to turn it into a {@link ByteSink}.
+ * <img src="../../../images/LineSink.png"/>
+ *
+ * @startuml
+ * interface LineSink
+ * LineSink : +line(info: FileInfo, offset: long, line: ByteBuffer)
+ * LineSplitter --> LineSink
+ * @enduml
+ *
+ * @author maartenl
+ */
+public interface LineSink
+{
+
+    /**
+     * A complete line of a file, without the newline. The buffer is only
+     * valid during the call.
+     *
+     * @param info the file
+     * @param offset the position in the file of the first byte of the line
+     * @param line the bytes of the line, from position to limit
+     * @throws IOException if the sink fails
+     */
+    public void line(FileInfo info, long offset, ByteBuffer line) throws IOException;
+}
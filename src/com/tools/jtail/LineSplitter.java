@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Splits the bytes of files into lines, for a {@link LineSink}. Lines that
+ * are complete within the bytes received are passed on as slices of them,
+ * without copying. Only the start of a line that is not complete yet is
+ * copied, and kept until the rest of it arrives.</p>
+ * <p>
+ * When a file is replaced or truncated, an incomplete last line is passed on
+ * as it is, as the rest of it will never arrive.</p>
+ * <img src="../../../images/LineSplitter.png"/>
+ *
+ * @startuml
+ * ByteSink <|-- LineSplitter
+ * LineSplitter --> LineSink
+ * LineSplitter : +LineSplitter(sink: LineSink)
+ * LineSplitter : +flush(info: FileInfo)
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class LineSplitter implements ByteSink
+{
+
+    private final LineSink sink;
+
+    /**
+     * The incomplete last line of every file.
+     */
+    private final Map<FileInfo, Partial> partials = new HashMap<>();
+
+    /**
+     * The start of a line, waiting for the rest of it.
+     */
+    private static class Partial
+    {
+
+        private long offset;
+
+        private byte[] bytes = new byte[256];
+
+        private int length;
+
+        /**
+         * The line so far, without the spare room after it.
+         */
+        private ByteBuffer line()
+        {
+            return ByteBuffer.wrap(bytes, 0, length).slice();
+        }
+
+        private void append(ByteBuffer buffer)
+        {
+            int remaining = buffer.remaining();
+            if (length + remaining > bytes.length)
+            {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + remaining));
+            }
+            buffer.get(bytes, length, remaining);
+            length += remaining;
+        }
+    }
+
+    public LineSplitter(LineSink sink)
+    {
+        this.sink = sink;
+    }
+
+    @Override
+    public void begin(FileInfo info)
+    {
+        // lines do not need headers
+    }
+
+    @Override
+    public void bytes(FileInfo info, long offset, ByteBuffer bytes) throws IOException
+    {
+        ByteBuffer buffer = bytes.duplicate();
+        Partial partial = partials.get(info);
+        int start = buffer.position();
+        int end = buffer.limit();
+        for (int i = indexOfNewline(buffer, start, end); i != -1; i = indexOfNewline(buffer, start, end))
+        {
+            buffer.limit(i);
+            buffer.position(start);
+            if (partial != null && partial.length > 0)
+            {
+                partial.append(buffer);
+                sink.line(info, partial.offset, partial.line());
+                partial.length = 0;
+            } else
+            {
+                sink.line(info, offset + start - bytes.position(), buffer);
+            }
+            buffer.limit(end);
+            start = i + 1;
+        }
+        if (start < buffer.limit())
+        {
+            if (partial == null)
+            {
+                partial = new Partial();
+                partials.put(info, partial);
+            }
+            if (partial.length == 0)
+            {
+                partial.offset = offset + start - bytes.position();
+            }
+            buffer.position(start);
+            partial.append(buffer);
+        }
+    }
+
+    /**
+     * Finds the next newline, directly in the array if there is one, which
+     * saves the bounds checks of the buffer.
+     *
+     * @return the index of the newline in the buffer, -1 if there is none.
+     */
+    private static int indexOfNewline(ByteBuffer buffer, int from, int to)
+    {
+        if (buffer.hasArray())
+        {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            for (int i = from + offset; i < to + offset; i++)
+            {
+                if (array[i] == '\n')
+                {
+                    return i - offset;
+                }
+            }
+            return -1;
+        }
+        for (int i = from; i < to; i++)
+        {
+            if (buffer.get(i) == '\n')
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Passes on the incomplete last line of a file, if there is one.
+     *
+     * @param info the file
+     * @throws IOException if the sink fails
+     */
+    public void flush(FileInfo info) throws IOException
+    {
+        Partial partial = partials.get(info);
+        if (partial != null && partial.length > 0)
+        {
+            sink.line(info, partial.offset, partial.line());
+            partial.length = 0;
+        }
+    }
+
+    @Override
+    public void replaced(FileInfo info) throws IOException
+    {
+        flush(info);
+    }
+
+    @Override
+    public void truncated(FileInfo info) throws IOException
+    {
+        flush(info);
+    }
+}
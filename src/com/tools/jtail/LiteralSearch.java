@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Searches bytes for a literal, using the Boyer-Moore-Horspool algorithm.
+ * The last byte of the window is compared first, and if it is a byte that
+ * does not occur in the literal, the window moves ahead by the whole length
+ * of the literal. So the longer the literal, the fewer bytes are looked
+ * at.</p>
+ * <p>
+ * Works directly on the bytes read from a file, so text that does not
+ * contain the literal is never decoded.</p>
+ * <img src="../../../images/LiteralSearch.png"/>
+ *
+ * @startuml
+ * LiteralSearch : +LiteralSearch(literal: byte[])
+ * LiteralSearch : +indexOf(bytes: ByteBuffer): int
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class LiteralSearch
+{
+
+    private final byte[] literal;
+
+    /**
+     * How far the window can move, by the last byte in the window.
+     */
+    private final int[] shifts = new int[256];
+
+    /**
+     * @param literal the bytes to search for, at least one
+     */
+    public LiteralSearch(byte[] literal)
+    {
+        if (literal.length == 0)
+        {
+            throw new IllegalArgumentException("Literal is empty.");
+        }
+        this.literal = literal.clone();
+        Arrays.fill(shifts, literal.length);
+        for (int i = 0; i < literal.length - 1; i++)
+        {
+            shifts[literal[i] & 0xFF] = literal.length - 1 - i;
+        }
+    }
+
+    /**
+     * Finds the first occurrence of the literal between the position and the
+     * limit of the buffer. The buffer itself is left as it is.
+     *
+     * @param bytes the bytes to search
+     * @return the index in the buffer where the literal starts, or -1 if it
+     * does not occur.
+     */
+    public int indexOf(ByteBuffer bytes)
+    {
+        if (bytes.hasArray())
+        {
+            int offset = bytes.arrayOffset();
+            int index = indexOf(bytes.array(), offset + bytes.position(), offset + bytes.limit());
+            return index == -1 ? -1 : index - offset;
+        }
+        int last = literal.length - 1;
+        int end = bytes.limit() - last;
+        int i = bytes.position();
+        while (i < end)
+        {
+            byte b = bytes.get(i + last);
+            if (b == literal[last])
+            {
+                int j = last - 1;
+                while (j >= 0 && bytes.get(i + j) == literal[j])
+                {
+                    j--;
+                }
+                if (j < 0)
+                {
+                    return i;
+                }
+            }
+            i += shifts[b & 0xFF];
+        }
+        return -1;
+    }
+
+    /**
+     * The same, on an array, which saves the bounds checks of the buffer.
+     */
+    private int indexOf(byte[] bytes, int from, int to)
+    {
+        int last = literal.length - 1;
+        byte lastByte = literal[last];
+        int end = to - last;
+        int i = from;
+        while (i < end)
+        {
+            byte b = bytes[i + last];
+            if (b == lastByte)
+            {
+                int j = last - 1;
+                while (j >= 0 && bytes[i + j] == literal[j])
+                {
+                    j--;
+                }
+                if (j < 0)
+                {
+                    return i;
+                }
+            }
+            i += shifts[b & 0xFF];
+        }
+        return -1;
+    }
+}
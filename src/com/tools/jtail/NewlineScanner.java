@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Finds newlines in files without decoding them. The file is memory mapped
+ * in large segments, and scanned eight bytes at a time, counting the newline
+ * bytes in a long with a few bit operations instead of comparing every byte.
+ * This makes skipping lines bounded by memory bandwidth.</p>
+ * <p>
+ * Segments are counted in parallel, on all cores, using fork/join. To find a
+ * line, a wave of segments is counted at a time, one segment per core, and
+ * the counts are added up in order (prefix sums) to find the segment that
+ * contains the line.</p>
+ * <img src="../../../images/NewlineScanner.png"/>
+ *
+ * @startuml
+ * class java.util.concurrent.ForkJoinPool
+ * NewlineScanner --> java.util.concurrent.ForkJoinPool
+ * NewlineScanner : +{static} count(buffer: ByteBuffer, from: int, to: int): long
+ * NewlineScanner : +{static} count(channel: FileChannel, position: long, end: long): long
+ * NewlineScanner : +{static} skipLines(channel: FileChannel, position: long, end: long, lines: long): long
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class NewlineScanner
+{
+
+    private static final Logger logger = Logger.getLogger(NewlineScanner.class.getName());
+
+    /**
+     * Size of the memory mapped segments, 16M. Also the amount of work of one
+     * fork/join task.
+     */
+    public static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Shared by all scans. Its threads are daemons, so they do not keep jtail
+     * running.
+     */
+    private static final ForkJoinPool pool = new ForkJoinPool();
+
+    private static final long ONES = 0x0101010101010101L;
+
+    private static final long NEWLINES = ONES * '\n';
+
+    private static final long LOW_BITS = ONES * 0x7F;
+
+    private static final long HIGH_BITS = ONES * 0x80;
+
+    private NewlineScanner()
+    {
+        // only static methods
+    }
+
+    /**
+     * The number of newline bytes in the eight bytes of the word. Every byte
+     * equal to a newline becomes 0 after the xor, and only for those the high
+     * bit stays 0 after adding 0x7F to the low seven bits. No carry crosses
+     * into the next byte, so the count is exact.
+     */
+    private static int count(long word)
+    {
+        long x = word ^ NEWLINES;
+        long nonZero = ((x & LOW_BITS) + LOW_BITS) | x;
+        return Long.bitCount(~nonZero & HIGH_BITS);
+    }
+
+    /**
+     * Counts the newline bytes in part of a buffer.
+     *
+     * @param buffer the buffer, for example memory mapped
+     * @param from the index to start at
+     * @param to the index to stop at, exclusive
+     * @return the number of newlines
+     */
+    public static long count(ByteBuffer buffer, int from, int to)
+    {
+        ByteBuffer words = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long newlines = 0;
+        int i = from;
+        for (; i + 8 <= to; i += 8)
+        {
+            newlines += count(words.getLong(i));
+        }
+        for (; i < to; i++)
+        {
+            if (buffer.get(i) == '\n')
+            {
+                newlines++;
+            }
+        }
+        return newlines;
+    }
+
+    /**
+     * Counts the newlines of a range of a file, splitting it in half until
+     * the parts are at most one segment.
+     */
+    private static class CountTask extends RecursiveTask<Long>
+    {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer[] segments;
+
+        private final int from;
+
+        private final int to;
+
+        private CountTask(ByteBuffer[] segments, int from, int to)
+        {
+            this.segments = segments;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute()
+        {
+            if (to - from == 1)
+            {
+                ByteBuffer segment = segments[from];
+                return count(segment, 0, segment.limit());
+            }
+            int middle = (from + to) >>> 1;
+            CountTask first = new CountTask(segments, from, middle);
+            first.fork();
+            long second = new CountTask(segments, middle, to).compute();
+            return first.join() + second;
+        }
+    }
+
+    /**
+     * Maps a range of the file as read-only segments. Mapping is done by the
+     * calling thread, so the tasks that count do not have to deal with
+     * IOExceptions.
+     */
+    private static ByteBuffer[] map(FileChannel channel, long position, long end) throws IOException
+    {
+        List<ByteBuffer> segments = new ArrayList<>();
+        while (position < end)
+        {
+            int length = (int) Math.min(SEGMENT_SIZE, end - position);
+            segments.add(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+            position += length;
+        }
+        return segments.toArray(new ByteBuffer[segments.size()]);
+    }
+
+    /**
+     * Counts the newlines in a range of the file, on all cores.
+     *
+     * @param channel the file
+     * @param position where to start
+     * @param end where to stop, usually the size of the file
+     * @return the number of newlines
+     * @throws IOException if the file could not be mapped
+     */
+    public static long count(FileChannel channel, long position, long end) throws IOException
+    {
+        long newlines = 0;
+        // map at most a wave of segments per core at a time
+        long wave = (long) SEGMENT_SIZE * pool.getParallelism() * 4;
+        while (position < end)
+        {
+            long waveEnd = Math.min(end, position + wave);
+            ByteBuffer[] segments = map(channel, position, waveEnd);
+            newlines += pool.invoke(new CountTask(segments, 0, segments.length));
+            position = waveEnd;
+        }
+        return newlines;
+    }
+
+    /**
+     * Skips a number of lines, counting one segment per core in parallel.
+     *
+     * @param channel the file
+     * @param position where to start, usually the beginning of a line
+     * @param end where to stop, usually the size of the file
+     * @param lines the number of lines to skip
+     * @return the position directly after the last newline skipped, or end if
+     * there are not that many lines.
+     * @throws IOException if the file could not be mapped
+     */
+    public static long skipLines(FileChannel channel, long position, long end, long lines) throws IOException
+    {
+        long wave = (long) SEGMENT_SIZE * pool.getParallelism();
+        while (lines > 0 && end - position > SEGMENT_SIZE && pool.getParallelism() > 1)
+        {
+            long waveEnd = Math.min(end, position + wave);
+            ByteBuffer[] segments = map(channel, position, waveEnd);
+            List<ForkJoinTask<Long>> counts = new ArrayList<>();
+            for (int i = 0; i < segments.length; i++)
+            {
+                counts.add(pool.submit(new CountTask(segments, i, i + 1)));
+            }
+            int found = -1;
+            for (int i = 0; i < segments.length && found == -1; i++)
+            {
+                long newlines = counts.get(i).join();
+                if (newlines >= lines)
+                {
+                    found = i;
+                } else
+                {
+                    lines -= newlines;
+                    position += segments[i].limit();
+                }
+            }
+            for (ForkJoinTask<Long> count : counts)
+            {
+                count.cancel(false);
+            }
+            if (found != -1)
+            {
+                logger.log(Level.FINEST, "line found in segment at {0}", position);
+                // the line is in this segment, find where exactly
+                return skip(channel, position, position + segments[found].limit(), lines);
+            }
+        }
+        return skip(channel, position, end, lines);
+    }
+
+    /**
+     * Skips a number of lines, one segment at a time.
+     */
+    private static long skip(FileChannel channel, long position, long end, long lines) throws IOException
+    {
+        while (lines > 0 && position < end)
+        {
+            int length = (int) Math.min(SEGMENT_SIZE, end - position);
+            ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN);
+            int i = 0;
+            for (; i + 8 <= length; i += 8)
+            {
+                int newlines = count(segment.getLong(i));
+                if (newlines >= lines)
+                {
+                    // the last one is in this word
+                    break;
+                }
+                lines -= newlines;
+            }
+            for (; i < length; i++)
+            {
+                if (segment.get(i) == '\n' && --lines == 0)
+                {
+                    return position + i + 1;
+                }
+            }
+            position += length;
+        }
+        return lines > 0 ? end : position;
+    }
+}
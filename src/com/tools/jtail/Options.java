@@ -17,14 +17,23 @@
 package com.tools.jtail;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import joptsimple.OptionException;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
+import joptsimple.ValueConversionException;
+import joptsimple.ValueConverter;
 
 /**
  * Parsing command line options and provide switches to the rest of the program.
@@ -46,6 +55,134 @@ public class Options
 
     public static final Long DEFAULT_SECONDS_SLEEP = 1l;
 
+    /**
+     * Checks the value of --flush, which is kept as it is.
+     */
+    private static final ValueConverter<String> FLUSH = new ValueConverter<String>()
+    {
+
+        @Override
+        public String convert(String value)
+        {
+            int equals = value.indexOf('=');
+            String policy = equals == -1 ? value : value.substring(0, equals);
+            BufferedOutput.Flush flush;
+            try
+            {
+                flush = BufferedOutput.Flush.valueOf(policy.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException ex)
+            {
+                throw new ValueConversionException("unknown --flush policy '" + policy + "', use event, bytes=N, millis=T or idle");
+            }
+            boolean threshold = flush == BufferedOutput.Flush.BYTES || flush == BufferedOutput.Flush.MILLIS;
+            if (!threshold)
+            {
+                if (equals != -1)
+                {
+                    throw new ValueConversionException("--flush=" + policy + " takes no value");
+                }
+                return value;
+            }
+            if (equals == -1)
+            {
+                throw new ValueConversionException("--flush=" + policy + " requires a value, like --flush=" + policy + "=N");
+            }
+            try
+            {
+                if (parseLongArgument(value.substring(equals + 1)) <= 0)
+                {
+                    throw new ValueConversionException("the value of --flush=" + policy + " must be positive");
+                }
+            } catch (NumberFormatException ex)
+            {
+                throw new ValueConversionException("invalid value of --flush=" + policy + ": '" + value.substring(equals + 1) + "'", ex);
+            }
+            return value;
+        }
+
+        @Override
+        public Class<String> valueType()
+        {
+            return String.class;
+        }
+
+        @Override
+        public String valuePattern()
+        {
+            return null;
+        }
+    };
+
+    /**
+     * Looks up the charset of --encoding.
+     */
+    private static final ValueConverter<Charset> ENCODING = new ValueConverter<Charset>()
+    {
+
+        @Override
+        public Charset convert(String value)
+        {
+            try
+            {
+                return Charset.forName(value);
+            } catch (IllegalArgumentException ex)
+            {
+                // also thrown for names that are not valid
+                throw new ValueConversionException("unknown --encoding '" + value + "'", ex);
+            }
+        }
+
+        @Override
+        public Class<Charset> valueType()
+        {
+            return Charset.class;
+        }
+
+        @Override
+        public String valuePattern()
+        {
+            return null;
+        }
+    };
+
+    /**
+     * Compiles the regular expression of --grep or --exclude.
+     *
+     * @param option the name of the option, for the message
+     * @return the converter
+     */
+    private static ValueConverter<Pattern> regex(final String option)
+    {
+        return new ValueConverter<Pattern>()
+        {
+
+            @Override
+            public Pattern convert(String value)
+            {
+                try
+                {
+                    return Pattern.compile(value);
+                } catch (PatternSyntaxException ex)
+                {
+                    throw new ValueConversionException("invalid --" + option + " regular expression '" + value
+                            + "': " + ex.getDescription(), ex);
+                }
+            }
+
+            @Override
+            public Class<Pattern> valueType()
+            {
+                return Pattern.class;
+            }
+
+            @Override
+            public String valuePattern()
+            {
+                return null;
+            }
+        };
+    }
+
     static
     {
         parser = new OptionParser("F")
@@ -58,11 +195,23 @@ public class Options
                 accepts("F", "output appended data as the file grows; -f, --follow, and --follow=descriptor are equivalent");
                 acceptsAll(Arrays.asList("n", "lines"), "output the last K lines, instead of the last 10; or use -n +K to output lines starting with the Kth").withRequiredArg().ofType(String.class);
                 accepts("max-unchanged-stats", "with --follow=name, reopen a FILE which has not changed size after N (default 5) iterations to see if it has been unlinked or renamed (this is the usual case of rotated log files). With inotify, this option is rarely useful. ").withRequiredArg().ofType(Integer.class);
-                accepts("pid", "(NOT IMPLEMENTED) with -f, terminate after process ID, PID dies").withRequiredArg().ofType(Long.class);
+                accepts("pid", "with -f, terminate after process ID, PID dies, once the files have been read one last time").withRequiredArg().ofType(Long.class);
                 acceptsAll(Arrays.asList("q", "quiet", "silent"), "never output headers giving filesnames");
                 accepts("retry", "keep trying to open a file even when it is or becomes inaccessible; useful when following by name, i.e., with --follow=name");
-                acceptsAll(Arrays.asList("s", "sleep-interval"), "with -f and -old, sleep for approximately N seconds (default 1.0) between iterations. With inotify and --pid=P, check process P at least once every N seconds.").withRequiredArg().ofType(Integer.class);
+                acceptsAll(Arrays.asList("s", "sleep-interval"), "with -f and -old, sleep for at most approximately N seconds (default 1.0, fractions like 0.1 are allowed) between checks of a file; files that are growing are checked more often.").withRequiredArg().ofType(Double.class);
                 acceptsAll(Arrays.asList("o", "old"), "use polling instead of NIO.2 to detect changes to files.");
+                accepts("checkpoint", "keep the position of every FILE in the registry FILE, and continue from there when started again").withRequiredArg().ofType(String.class);
+                accepts("count-lines", "print the newline and byte counts of each FILE, like wc -lc, instead of tailing it");
+                accepts("glob", "with a directory as FILE, only tail the files with names matching the glob pattern, for example *.log").withRequiredArg().ofType(String.class);
+                accepts("recursive", "with a directory or a pattern like dir/*.log as FILE, tail the files in its subdirectories as well; with -f, files and subdirectories created later on are followed too");
+                accepts("readers", "with -f, the number of files read at the same time, on separate threads (default: the number of cores, or 0 with a single core); 0 reads them one by one on the thread that watches them").withRequiredArg().ofType(Integer.class);
+                accepts("index", "keep a sparse index of line offsets next to each FILE, as FILE" + LineIndex.EXTENSION + ", to find lines without reading the whole file, or for gzip files, points to start decompressing at; it is updated whenever it is used, and while following");
+                accepts("encoding", "the encoding of the files, for example UTF-8 or ISO-8859-1; they are converted to the encoding of the output. If omitted, the bytes are output as they are.").withRequiredArg().withValuesConvertedBy(ENCODING);
+                accepts("grep", "only output lines matching the regular expression, like piping through grep").withRequiredArg().withValuesConvertedBy(regex("grep"));
+                accepts("exclude", "do not output lines matching the regular expression, like piping through grep -v").withRequiredArg().withValuesConvertedBy(regex("exclude"));
+                accepts("flush", "when to write buffered output: 'event' after every change, 'bytes=N' when N bytes are buffered, 'millis=T' when output is T milliseconds old, 'idle' (default) when there is nothing more to read").withRequiredArg().withValuesConvertedBy(FLUSH);
+                accepts("stats", "print statistics of the files to standard error every N seconds (fractions are allowed), and at the end; they are also available with JMX, as MBeans in the domain " + Statistics.DOMAIN).withRequiredArg().ofType(Double.class);
+                accepts("trace", "with -f, record how long changes take from being detected, to being read, to being flushed to the output, and print the percentiles to standard error at the end; while following, they are also available with JMX, as an MBean in the domain " + Statistics.DOMAIN);
                 acceptsAll(Arrays.asList("v", "verbose"), "always output headers giving file names");
                 acceptsAll(Arrays.asList("h", "help"), "display this help and exit").forHelp();
                 accepts("version", "output version information and exit");
@@ -72,9 +221,21 @@ public class Options
         files = parser.nonOptions().ofType(String.class);
     }
 
+    /**
+     * Parses the command line.
+     *
+     * @param args the command line arguments
+     * @throws OptionException if an option is not known, or its value is not
+     * valid
+     */
     public static void parse(String[] args)
     {
         options = parser.parse(args);
+        // values are only converted when asked for
+        options.valueOf("flush");
+        options.valueOf("encoding");
+        options.valueOf("grep");
+        options.valueOf("exclude");
     }
 
     /**
@@ -155,9 +316,11 @@ public class Options
     }
 
     /**
-     * (NOT IMPLEMENTED) with -f, terminate after process ID, PID dies.
+     * With -f, terminate after process ID, PID dies. The process is not
+     * polled, the watcher is stopped as soon as the process exits.
      *
-     * @return
+     * @return the process ID, or null if not provided
+     * @see Watcher#stop()
      */
     public static Long pid()
     {
@@ -170,20 +333,20 @@ public class Options
     }
 
     /**
-     * With -f and -old, sleep for approximately N seconds (default 1.0) between
-     * iterations. With inotify and --pid=P, check process P at least once every
-     * N seconds.
+     * With -f and -old, sleep for at most approximately N seconds (default
+     * 1.0) between checks of a file. N may be a fraction, for example 0.1.
      *
-     * @return number of seconds to sleep. Default is 1 second.
+     * @return number of milliseconds to sleep, at least 1. Default is 1
+     * second.
      */
-    public static Long sleep()
+    public static long sleepMillis()
     {
         if (!options.has("s"))
         {
-            return DEFAULT_SECONDS_SLEEP;
+            return DEFAULT_SECONDS_SLEEP * 1000l;
         }
-
-        return (Long) options.valueOf("s");
+        double seconds = (Double) options.valueOf("s");
+        return Math.max(1l, Math.round(seconds * 1000.0));
     }
 
     /**
@@ -229,13 +392,56 @@ public class Options
     }
 
     /**
-     * More than 1 filename is provided on the command line.
+     * More than 1 filename is provided on the command line, or a directory or
+     * pattern that could match more than one.
      *
      * @return
      */
     private static boolean hasMultipleFiles()
     {
-        return getNumberOfFiles() > 1;
+        return getNumberOfFiles() > 1 || (getNumberOfFiles() == 1 && WatchedDirectory.isPattern(getFile(0)));
+    }
+
+    /**
+     * The number of followed files that are read at the same time.
+     *
+     * @return the number of reader threads, 0 if the files are to be read by
+     * the watcher. Default is the number of cores, but with only one core,
+     * handing the reading over to other threads does not gain anything.
+     * @see FollowerEngine
+     */
+    public static int getReaders()
+    {
+        if (!options.has("readers"))
+        {
+            int cores = Runtime.getRuntime().availableProcessors();
+            return cores > 1 ? cores : 0;
+        }
+        return Math.max(0, (Integer) options.valueOf("readers"));
+    }
+
+    /**
+     * The glob pattern for the files in a directory provided as FILE.
+     *
+     * @return the pattern, default is all files.
+     */
+    public static String getGlob()
+    {
+        if (!options.has("glob"))
+        {
+            return WatchedDirectory.ALL_FILES;
+        }
+        return (String) options.valueOf("glob");
+    }
+
+    /**
+     * Include the subdirectories of a directory provided as FILE.
+     *
+     * @return true if recursive
+     */
+    public static boolean recursive()
+    {
+        return options.has("recursive");
     }
 
     /**
@@ -372,6 +578,169 @@ public class Options
         return parseLongArgument((String) options.valueOf("c"));
     }
 
+    /**
+     * Print the number of lines and bytes of the files, instead of tailing
+     * them.
+     *
+     * @return true if lines need to be counted
+     */
+    public static boolean countLines()
+    {
+        return options.has("count-lines");
+    }
+
+    /**
+     * The registry to keep the positions of the files in.
+     *
+     * @return the path of the registry, or null if not provided
+     * @see Checkpoint
+     */
+    public static Path getCheckpoint()
+    {
+        if (!options.has("checkpoint"))
+        {
+            return null;
+        }
+        return Paths.get((String) options.valueOf("checkpoint"));
+    }
+
+    /**
+     * Keep statistics of the files, available with JMX, and print them every
+     * interval.
+     *
+     * @return true if statistics are to be kept
+     * @see Statistics
+     */
+    public static boolean statistics()
+    {
+        return options.has("stats");
+    }
+
+    /**
+     * The interval between printing the statistics.
+     *
+     * @return the interval in milliseconds, at least 1
+     */
+    public static long statisticsMillis()
+    {
+        double seconds = (Double) options.valueOf("stats");
+        return Math.max(1l, Math.round(seconds * 1000.0));
+    }
+
+    /**
+     * Trace the latency of changes, from detecting them up until the output.
+     *
+     * @return true if tracing
+     * @see LatencyTrace
+     */
+    public static boolean trace()
+    {
+        return options.has("trace");
+    }
+
+    /**
+     * Keep a sparse index of line offsets next to the files.
+     *
+     * @return true if the index is to be used
+     * @see LineIndex
+     */
+    public static boolean useIndex()
+    {
+        return options.has("index");
+    }
+
+    /**
+     * The encoding of the files.
+     *
+     * @return the encoding, or null if not provided, in which case the bytes
+     * are output as they are.
+     */
+    public static Charset getEncoding()
+    {
+        if (!options.has("encoding"))
+        {
+            return null;
+        }
+        return (Charset) options.valueOf("encoding");
+    }
+
+    /**
+     * Only lines matching this are output.
+     *
+     * @return the regular expression, or null if all lines are output.
+     */
+    public static Pattern getGrep()
+    {
+        if (!options.has("grep"))
+        {
+            return null;
+        }
+        return (Pattern) options.valueOf("grep");
+    }
+
+    /**
+     * Lines matching this are not output.
+     *
+     * @return the regular expression, or null if no lines are excluded.
+     */
+    public static Pattern getExclude()
+    {
+        if (!options.has("exclude"))
+        {
+            return null;
+        }
+        return (Pattern) options.valueOf("exclude");
+    }
+
+    /**
+     * Output is filtered by line, with --grep or --exclude.
+     *
+     * @return true if lines are filtered
+     */
+    public static boolean filterLines()
+    {
+        return options.has("grep") || options.has("exclude");
+    }
+
+    /**
+     * When to write buffered output.
+     *
+     * @return the flush policy, default is {@link BufferedOutput.Flush#IDLE}.
+     */
+    public static BufferedOutput.Flush getFlush()
+    {
+        if (!options.has("flush"))
+        {
+            return BufferedOutput.Flush.IDLE;
+        }
+        String flush = (String) options.valueOf("flush");
+        int equals = flush.indexOf('=');
+        String policy = equals == -1 ? flush : flush.substring(0, equals);
+        return BufferedOutput.Flush.valueOf(policy.toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * The number of bytes or milliseconds that goes with the flush policy, for
+     * example 64K in --flush=bytes=64K. The number of bytes may have a
+     * multiplier suffix, like -c.
+     *
+     * @return the threshold, or 0 if not provided.
+     */
+    public static long getFlushThreshold()
+    {
+        if (!options.has("flush"))
+        {
+            return 0;
+        }
+        String flush = (String) options.valueOf("flush");
+        int equals = flush.indexOf('=');
+        if (equals == -1)
+        {
+            return 0;
+        }
+        return parseLongArgument(flush.substring(equals + 1));
+    }
+
     /**
      * Returns the list of filenames provided in the command line.
      *
@@ -17,8 +17,17 @@
 package com.tools.jtail;
 
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,6 +35,13 @@ import java.util.logging.Logger;
  * <p>
  * The old fashion way of checking file changes. By periodically querying the
  * filesystem.</p>
+ * <p>
+ * Every file has its own polling interval. A file that is growing is checked
+ * more and more often, down to {@link #MINIMUM_INTERVAL} milliseconds. A file
+ * that is not, is checked less and less often, up to the sleep interval
+ * provided on the command line.</p>
+ * <p>
+ * Watched directories are listed every sleep interval, to find new files.</p>
  *
  * @author maartenl
  */
@@ -34,11 +50,74 @@ public abstract class PollingWatcher implements Watcher
 
     private static final Logger logger = Logger.getLogger(PollingWatcher.class.getName());
 
+    /**
+     * Shortest interval in milliseconds between two checks of a file that is
+     * actively growing.
+     */
+    public static final long MINIMUM_INTERVAL = 10l;
+
     /**
      * Files to tail.
      */
     private final Set<FileInfo> files = new HashSet<>();
 
+    /**
+     * Directories in which new files are to be tailed, including the
+     * subdirectories found so far, by directory.
+     */
+    private final Map<Path, WatchedDirectory> watchedDirectories = new LinkedHashMap<>();
+
+    /**
+     * Waited on between checks, so {@link #stop() } can wake it up.
+     */
+    private final Object lock = new Object();
+
+    private boolean stopped;
+
+    /**
+     * When to check a file next.
+     */
+    private static class Schedule implements Comparable<Schedule>
+    {
+
+        private final FileInfo info;
+
+        /**
+         * Current interval in milliseconds.
+         */
+        private long interval;
+
+        /**
+         * Time of the next check, in milliseconds, relative to the same
+         * origin as {@link #now() }.
+         */
+        private long due;
+
+        private Schedule(FileInfo info, long interval, long due)
+        {
+            this.info = info;
+            this.interval = interval;
+            this.due = due;
+        }
+
+        @Override
+        public int compareTo(Schedule other)
+        {
+            return Long.compare(due, other.due);
+        }
+    }
+
+    /**
+     * Monotonic clock in milliseconds, not affected by changes to the system
+     * time.
+     *
+     * @return the current time in milliseconds
+     */
+    private static long now()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
     @Override
     public void watch(FileInfo fileInfo)
             throws IOException
@@ -48,34 +127,181 @@ public abstract class PollingWatcher implements Watcher
         logger.exiting(PollingWatcher.class.getName(), "watch");
     }
 
+    @Override
+    public void watch(WatchedDirectory directory) throws IOException
+    {
+        logger.entering(PollingWatcher.class.getName(), "watch");
+        watchedDirectories.put(directory.getDirectory(), directory);
+        logger.exiting(PollingWatcher.class.getName(), "watch");
+    }
+
+    /**
+     * Lists the watched directories, looking for new files and, if
+     * recursive, new subdirectories. New files are checked right away. A
+     * followed file that was renamed continues where it was, see
+     * {@link FileInfo#takeOver(Iterable) }.
+     */
+    private void discover(PriorityQueue<Schedule> schedules, long interval) throws IOException
+    {
+        Set<Path> known = new HashSet<>();
+        for (FileInfo info : files)
+        {
+            known.add(info.getFile().toAbsolutePath().normalize());
+        }
+        Deque<WatchedDirectory> todo = new ArrayDeque<>(watchedDirectories.values());
+        while (!todo.isEmpty())
+        {
+            WatchedDirectory directory = todo.remove();
+            List<Path> found;
+            List<WatchedDirectory> subdirectories;
+            try
+            {
+                found = directory.list();
+                subdirectories = directory.listSubdirectories();
+            } catch (NoSuchFileException ex)
+            {
+                logger.log(Level.FINE, "Directory {0} is missing.", directory.getDirectory());
+                continue;
+            }
+            for (Path file : found)
+            {
+                if (!known.add(file.toAbsolutePath().normalize()))
+                {
+                    continue;
+                }
+                FileInfo info;
+                try
+                {
+                    info = new FileInfo(file.toString());
+                } catch (IOException ex)
+                {
+                    logger.log(Level.FINE, "File {0} disappeared.", file);
+                    continue;
+                }
+                if (!info.takeOver(files))
+                {
+                    // tried again at the next discovery
+                    logger.log(Level.FINE, "File {0} is still being read under another name.", file);
+                    continue;
+                }
+                logger.log(Level.FINE, "New file {0}.", file);
+                files.add(info);
+                discovered(info);
+                schedules.add(new Schedule(info, interval, now()));
+            }
+            for (WatchedDirectory subdirectory : subdirectories)
+            {
+                if (!watchedDirectories.containsKey(subdirectory.getDirectory()))
+                {
+                    watchedDirectories.put(subdirectory.getDirectory(), subdirectory);
+                    todo.add(subdirectory);
+                }
+            }
+        }
+    }
+
     @Override
     public void startWatching() throws IOException
     {
         logger.entering(PollingWatcher.class.getName(), "startWatching");
+        long maximum = Options.sleepMillis();
+        long minimum = Math.min(MINIMUM_INTERVAL, maximum);
+        PriorityQueue<Schedule> schedules = new PriorityQueue<>();
+        for (FileInfo info : files)
+        {
+            schedules.add(new Schedule(info, maximum, now() + maximum));
+        }
+
+        // directories are listed every maximum interval
+        long nextDiscovery = now();
 
         // processing events
-        boolean keepGoing = true;
+        boolean keepGoing = !schedules.isEmpty() || !watchedDirectories.isEmpty();
         logger.log(Level.FINEST, "Entering while-loop.");
-        while (keepGoing)
+        while (keepGoing && !isStopped())
         {
-            try
+            if (!watchedDirectories.isEmpty() && nextDiscovery - now() <= 0)
+            {
+                discover(schedules, minimum);
+                nextDiscovery = now() + maximum;
+            }
+            Schedule schedule = schedules.peek();
+            long due = schedule == null ? nextDiscovery : schedule.due;
+            if (!watchedDirectories.isEmpty())
             {
-                Thread.sleep(Options.sleep() * 1000l);
-                for (FileInfo info : files)
+                due = Math.min(due, nextDiscovery);
+            }
+            long wait = due - now();
+            if (wait > 0)
+            {
+                idle();
+                try
                 {
-                    if (info.getPosition() != info.getSize())
+                    synchronized (lock)
                     {
-                        eventDetected(info);
+                        if (!stopped)
+                        {
+                            lock.wait(wait);
+                        }
                     }
+                } catch (InterruptedException ex)
+                {
+                    // waiting interrupted, lets' wait some more
+                    logger.log(Level.INFO, null, ex);
                 }
-            } catch (InterruptedException ex)
+                continue;
+            }
+            if (schedule == null || schedule.due - now() > 0)
+            {
+                // time to discover
+                continue;
+            }
+            schedules.poll();
+            FileInfo info = schedule.info;
+            boolean changed = false;
+            try
+            {
+                info.refresh();
+                changed = info.isChanged();
+            } catch (NoSuchFileException ex)
+            {
+                logger.log(Level.FINE, "File {0} is missing.", info.getFilename());
+            }
+            if (changed)
+            {
+                eventDetected(info);
+                schedule.interval = Math.max(minimum, schedule.interval / 4);
+            } else
             {
-                // waiting interrupted, lets' wait some more
-                logger.log(Level.INFO, null, ex);
+                schedule.interval = Math.min(maximum, schedule.interval * 2);
             }
+            logger.log(Level.FINEST, "{0} checked, interval {1} ms, stat calls so far {2}.", new Object[]
+            {
+                info.getFilename(), schedule.interval, FileInfo.getStatCalls()
+            });
+            schedule.due = now() + schedule.interval;
+            schedules.add(schedule);
         }
         logger.exiting(PollingWatcher.class
                 .getName(), "startWatching");
     }
 
+    private boolean isStopped()
+    {
+        synchronized (lock)
+        {
+            return stopped;
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        synchronized (lock)
+        {
+            stopped = true;
+            lock.notifyAll();
+        }
+    }
+
 }
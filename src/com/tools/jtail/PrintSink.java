@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <p>
+ * Writes what is tailed to a PrintStream, the way the unix tail does, with a
+ * header giving the filename if required, and a message when a file has been
+ * replaced or truncated. This is what the command line uses.</p>
+ * <p>
+ * Bytes that do not need converting can be copied from the file by the
+ * operating system, using {@link #transferFrom(FileChannel, long, long) },
+ * without them ever reaching the heap.</p>
+ * <img src="../../../images/PrintSink.png"/>
+ *
+ * @startuml
+ * ByteSink <|-- PrintSink
+ * PrintSink --> java.io.PrintStream
+ * PrintSink : +PrintSink(out: PrintStream, showFilenames: boolean)
+ * PrintSink : +transferFrom(channel: FileChannel, position: long, end: long): long
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class PrintSink implements ByteSink
+{
+
+    /**
+     * Channel directly on top of the standard output file descriptor. Is never
+     * closed, as that would close System.out as well.
+     */
+    private static final FileChannel STDOUT = new FileOutputStream(FileDescriptor.out).getChannel();
+
+    private final PrintStream out;
+
+    private final boolean showFilenames;
+
+    /**
+     * Used for buffers that do not have an array.
+     */
+    private byte[] copy;
+
+    /**
+     * @param out where to write to
+     * @param showFilenames show a header with the filename, every time a file
+     * is tailed
+     */
+    public PrintSink(PrintStream out, boolean showFilenames)
+    {
+        this.out = out;
+        this.showFilenames = showFilenames;
+    }
+
+    @Override
+    public void begin(FileInfo info)
+    {
+        if (showFilenames)
+        {
+            out.println("==> " + info.getFilename() + " <==");
+        }
+    }
+
+    @Override
+    public void bytes(FileInfo info, long offset, ByteBuffer bytes)
+    {
+        if (bytes.hasArray())
+        {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            return;
+        }
+        ByteBuffer buffer = bytes.duplicate();
+        if (copy == null)
+        {
+            copy = new byte[8192];
+        }
+        while (buffer.hasRemaining())
+        {
+            int length = Math.min(copy.length, buffer.remaining());
+            buffer.get(copy, 0, length);
+            out.write(copy, 0, length);
+        }
+    }
+
+    @Override
+    public void replaced(FileInfo info)
+    {
+        out.println("jtail: " + info.getFilename() + ": file has been replaced; following new file");
+    }
+
+    @Override
+    public void truncated(FileInfo info)
+    {
+        out.println("jtail: " + info.getFilename() + ": file truncated");
+    }
+
+    /**
+     * Provides a channel that writes to the same destination as the
+     * PrintStream. Anything still buffered in the PrintStream is flushed first,
+     * so the order of the output is preserved. If the PrintStream is
+     * System.out, the channel on the file descriptor is used, allowing the
+     * operating system to copy the bytes without them ever reaching the heap.
+     *
+     * @return a channel writing to the same destination
+     */
+    private WritableByteChannel getChannel()
+    {
+        out.flush();
+        if (out == System.out)
+        {
+            return STDOUT;
+        }
+        return Channels.newChannel(out);
+    }
+
+    /**
+     * Copies the bytes from position up until end of the file to the output,
+     * without decoding them.
+     *
+     * @param channel the file to read from
+     * @param position the position to start at
+     * @param end the position to stop at
+     * @return the position up until where the file was copied
+     * @throws IOException if the reading or writing fails
+     */
+    public long transferFrom(FileChannel channel, long position, long end) throws IOException
+    {
+        if (out instanceof BufferedOutput)
+        {
+            return ((BufferedOutput) out).transferFrom(channel, position, end);
+        }
+        WritableByteChannel target = getChannel();
+        while (position < end)
+        {
+            long transferred = channel.transferTo(position, end - position, target);
+            if (transferred <= 0)
+            {
+                // file has been truncated in the meantime
+                break;
+            }
+            position += transferred;
+        }
+        return position;
+    }
+}
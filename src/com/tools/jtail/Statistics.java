@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * The statistics of all followed files, for --stats. They are registered
+ * with the platform MBean server, together with the {@link FileStatistics}
+ * of every file, so they can be watched with jconsole or any other JMX
+ * client, and printed to standard error every interval.</p>
+ * <p>
+ * The totals are kept in static counters, updated by the
+ * {@link FileStatistics} of the files without locking. Lines are only
+ * counted once statistics are enabled, and only in bytes that are on the
+ * heap anyway, with --encoding, --grep or --exclude, or for a
+ * {@link Tailer}. Bytes the operating system copies straight to the output
+ * are not read again just to count them.</p>
+ * <img src="../../../images/Statistics.png"/>
+ *
+ * @startuml
+ * StatisticsMBean <|-- Statistics
+ * Statistics : +Statistics()
+ * Statistics : +{static} isEnabled(): boolean
+ * Statistics : +add(info: FileInfo)
+ * Statistics : +setWatcher(watcher: Watcher)
+ * Statistics : +start(millis: long, out: PrintStream)
+ * Statistics : +print(out: PrintStream)
+ * Statistics : +close()
+ * Statistics --> "*" FileInfo
+ * Statistics --> FileSystemWatcher
+ * Statistics ..> FileStatistics
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class Statistics implements StatisticsMBean
+{
+
+    private static final Logger logger = Logger.getLogger(Statistics.class.getName());
+
+    /**
+     * The domain of the names of the MBeans.
+     */
+    public static final String DOMAIN = "com.tools.jtail";
+
+    static final LongAdder EVENTS_RECEIVED = new LongAdder();
+
+    static final LongAdder EVENTS_COALESCED = new LongAdder();
+
+    static final LongAdder REOPENS = new LongAdder();
+
+    static final LongAdder BYTES_READ = new LongAdder();
+
+    static final LongAdder LINES_EMITTED = new LongAdder();
+
+    static final LatencyHistogram READ_LATENCY = new LatencyHistogram();
+
+    private static volatile boolean enabled;
+
+    private final List<FileInfo> files = new CopyOnWriteArrayList<>();
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    /**
+     * The watcher, if it counts overflows, null otherwise.
+     */
+    private volatile FileSystemWatcher watcher;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Enables the statistics, and registers them as an MBean.
+     */
+    public Statistics()
+    {
+        enabled = true;
+        register(this, "type=Statistics");
+    }
+
+    /**
+     * Indicates that statistics are enabled, so counting that has a cost of
+     * its own is to be done.
+     *
+     * @return true once statistics are enabled
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Registers an MBean, logging a failure, as statistics are not worth
+     * stopping for.
+     */
+    private void register(Object mbean, String properties)
+    {
+        try
+        {
+            server.registerMBean(mbean, new ObjectName(DOMAIN + ":" + properties));
+        } catch (JMException ex)
+        {
+            logger.log(Level.WARNING, "Could not register statistics with JMX.", ex);
+        }
+    }
+
+    /**
+     * Adds a followed file, and registers its statistics as an MBean.
+     *
+     * @param info the file
+     */
+    public void add(FileInfo info)
+    {
+        files.add(info);
+        register(info.getStatistics(), "type=File,name=" + ObjectName.quote(info.getFilename()));
+    }
+
+    /**
+     * @param watcher the watcher, which might count overflows
+     */
+    public void setWatcher(Watcher watcher)
+    {
+        if (watcher instanceof FileSystemWatcher)
+        {
+            this.watcher = (FileSystemWatcher) watcher;
+        }
+    }
+
+    /**
+     * Prints the statistics every interval, on a thread of its own.
+     *
+     * @param millis the interval in milliseconds
+     * @param out where to print to
+     */
+    public synchronized void start(long millis, final PrintStream out)
+    {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "jtail statistics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable()
+        {
+
+            @Override
+            public void run()
+            {
+                print(out);
+            }
+        }, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Prints the totals, and the statistics of every file.
+     *
+     * @param out where to print to
+     */
+    public void print(PrintStream out)
+    {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("jtail: ").append(getFileCount()).append(" files: events ").append(getEventsReceived())
+                .append(" (coalesced ").append(getEventsCoalesced()).append("), read ").append(getBytesRead())
+                .append(" bytes, ").append(getLinesEmitted()).append(" lines, reopened ").append(getReopenCount())
+                .append(", stat calls ").append(getStatCalls()).append(", overflows ").append(getOverflowCount())
+                .append(", lag ").append(getLagBytes()).append(" bytes, reads ").append(READ_LATENCY)
+                .append(System.lineSeparator());
+        for (FileInfo info : files)
+        {
+            buffer.append("jtail: ").append(info.getStatistics()).append(System.lineSeparator());
+        }
+        out.print(buffer);
+        out.flush();
+    }
+
+    /**
+     * Stops printing.
+     */
+    public synchronized void close()
+    {
+        if (scheduler != null)
+        {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Override
+    public int getFileCount()
+    {
+        return files.size();
+    }
+
+    @Override
+    public long getBytesRead()
+    {
+        return BYTES_READ.sum();
+    }
+
+    @Override
+    public long getLinesEmitted()
+    {
+        return LINES_EMITTED.sum();
+    }
+
+    @Override
+    public long getEventsReceived()
+    {
+        return EVENTS_RECEIVED.sum();
+    }
+
+    @Override
+    public long getEventsCoalesced()
+    {
+        return EVENTS_COALESCED.sum();
+    }
+
+    @Override
+    public long getReopenCount()
+    {
+        return REOPENS.sum();
+    }
+
+    @Override
+    public long getStatCalls()
+    {
+        return FileInfo.getStatCalls();
+    }
+
+    @Override
+    public long getOverflowCount()
+    {
+        FileSystemWatcher current = watcher;
+        return current == null ? 0 : current.getOverflowCount();
+    }
+
+    @Override
+    public long getLagBytes()
+    {
+        long lag = 0;
+        for (FileInfo info : files)
+        {
+            lag += info.getStatistics().getLagBytes();
+        }
+        return lag;
+    }
+
+    @Override
+    public long getReadCount()
+    {
+        return READ_LATENCY.getCount();
+    }
+
+    @Override
+    public long getReadLatencyMedianMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(READ_LATENCY.getValueAtPercentile(50.0));
+    }
+
+    @Override
+    public long getReadLatency99Micros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(READ_LATENCY.getValueAtPercentile(99.0));
+    }
+
+    @Override
+    public long getReadLatencyMaxMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(READ_LATENCY.getMax());
+    }
+}
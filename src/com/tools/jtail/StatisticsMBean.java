@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+/**
+ * The statistics of all followed files together, as exposed by JMX, under
+ * the name <code>com.tools.jtail:type=Statistics</code>.
+ * <img src="../../../images/StatisticsMBean.png"/>
+ *
+ * @startuml
+ * interface StatisticsMBean
+ * StatisticsMBean <|-- Statistics
+ * @enduml
+ *
+ * @author maartenl
+ */
+public interface StatisticsMBean
+{
+
+    /**
+     * @return the number of files followed
+     */
+    public int getFileCount();
+
+    /**
+     * @return the number of bytes read from all files
+     */
+    public long getBytesRead();
+
+    /**
+     * @return the number of lines read from all files, see
+     * {@link FileStatisticsMBean#getLinesEmitted() }
+     */
+    public long getLinesEmitted();
+
+    /**
+     * @return the number of changes detected by the watcher
+     */
+    public long getEventsReceived();
+
+    /**
+     * @return the number of changes that were handled by the read of another
+     * change
+     */
+    public long getEventsCoalesced();
+
+    /**
+     * @return the number of times a file was opened again, because it was
+     * replaced
+     */
+    public long getReopenCount();
+
+    /**
+     * @return the number of times the attributes of a file were requested
+     * from the filesystem
+     */
+    public long getStatCalls();
+
+    /**
+     * @return the number of times events of the operating system were lost,
+     * 0 when polling
+     */
+    public long getOverflowCount();
+
+    /**
+     * @return the number of bytes in all files that have not been read yet
+     */
+    public long getLagBytes();
+
+    /**
+     * @return the number of times changes of a file have been read
+     */
+    public long getReadCount();
+
+    /**
+     * @return the median time it took to read the changes of a file, in
+     * microseconds
+     */
+    public long getReadLatencyMedianMicros();
+
+    /**
+     * @return the 99th percentile of the time it took to read the changes of
+     * a file, in microseconds
+     */
+    public long getReadLatency99Micros();
+
+    /**
+     * @return the longest time it took to read the changes of a file, in
+     * microseconds
+     */
+    public long getReadLatencyMaxMicros();
+}
@@ -16,9 +16,7 @@
  */
 package com.tools.jtail;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintStream;
 
 /**
  *
@@ -27,6 +25,12 @@ import java.io.PrintStream;
 public interface TailFile
 {
 
-    public void tail(PrintStream out) throws FileNotFoundException, IOException;
+    /**
+     * Tails the file, passing what is read on to the sink.
+     *
+     * @param sink where the bytes go, for example a {@link PrintSink}
+     * @throws IOException if the file could not be read, or the sink failed
+     */
+    public void tail(ByteSink sink) throws IOException;
 
 }
@@ -16,16 +16,15 @@
  */
 package com.tools.jtail;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.io.RandomAccessFile;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Creates TailFile implementations depending on the requirements.
@@ -34,29 +33,207 @@ import java.util.logging.Logger;
  * @author maartenl
  *
  * @startuml TailFileFactory : +{static} createTailFile(info:FileInfo,
- * bytes:Long , lines:Long , fromBeginning:boolean , showFilenames:boolean ):
- * TailFile TailFileBytes <-- TailFileFactory TailFileLinesFromEnd <--
+ * bytes:Long , lines:Long , fromBeginning:boolean ,
+ * encoding:Charset , checkpoint:Checkpoint ): TailFile TailFileBytes --> LineIndex TailFileLinesFromEnd --> LineIndex
+ * TailFileLinesFromBeginning --> LineIndex TailFileBytes <-- TailFileFactory TailFileLinesFromEnd <--
  * TailFileFactory TailFileLinesFromBeginning <-- TailFileFactory interface
- * TailFile TailFile <|-- TailFileBytes TailFile <|-- TailFileLinesFromEnd
- * TailFile <|-- TailFileLinesFromBeginning @enduml @author maartenl
+ * TailFile TailFile <|-- TailFileBytes TailFile --> ByteSink TailFile <|-- TailFileLinesFromEnd
+ * TailFile <|-- TailFileLinesFromBeginning TailFile <|-- TailFileGzip TailFileGzip <-- TailFileFactory
+ * TailFileGzip --> GzipIndex TailFileGzip ..> GzipInflater @enduml @author maartenl
  */
 public class TailFileFactory
 {
 
     /**
-     * Buffer size of 4k.
+     * Buffer size of 64k.
      */
-    private static final int BUFFER_SIZE = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     private static final Logger logger = Logger.getLogger(TailFileFactory.class.getName());
 
-    public static TailFile createTailFile(FileInfo info, Long bytes, Long lines, boolean fromBeginning, boolean showFilenames)
+    /**
+     * Copies bytes from a file to a sink, without decoding them, unless the
+     * file is in a different encoding than the output. Every TailFile has its
+     * own, so the buffers are reused.
+     */
+    private static class Transfer
     {
+
+        /**
+         * Converts from the encoding of the file to the encoding of the
+         * output, null if the bytes can be copied as they are.
+         */
+        private final Transcoder transcoder;
+
+        /**
+         * Allocated the first time it is needed, which is never for a
+         * {@link PrintSink}.
+         */
+        private ByteBuffer buffer;
+
+        /**
+         * The newlines among the bytes of the last copy, only counted when
+         * statistics are enabled, and the bytes pass through the heap.
+         */
+        private long lines;
+
+        private Transfer(Transcoder transcoder)
+        {
+            this.transcoder = transcoder;
+        }
+
+        /**
+         * Copies the bytes from position up until end of the file to the
+         * sink.
+         *
+         * @param info the file
+         * @param channel the file to read from
+         * @param position the position to start at
+         * @param end the position to stop at
+         * @param sink where to write to
+         * @return the position up until where the file was copied
+         * @throws IOException if the reading or writing fails
+         */
+        private long transfer(FileInfo info, FileChannel channel, long position, long end, ByteSink sink) throws IOException
+        {
+            long start = position;
+            lines = 0;
+            position = copy(info, channel, position, end, sink);
+            info.getStatistics().read(position - start, lines);
+            return position;
+        }
+
+        private long copy(FileInfo info, FileChannel channel, long position, long end, ByteSink sink) throws IOException
+        {
+            if (transcoder != null)
+            {
+                position = transcoder.transfer(info, channel, position, end, sink);
+                lines = transcoder.getNewlines();
+                return position;
+            }
+            if (sink instanceof PrintSink)
+            {
+                // the bytes might never reach the heap, so lines are not
+                // counted, reading them again just for that costs too much
+                return ((PrintSink) sink).transferFrom(channel, position, end);
+            }
+            if (buffer == null)
+            {
+                buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            }
+            while (position < end)
+            {
+                buffer.clear();
+                buffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+                int read = channel.read(buffer, position);
+                if (read <= 0)
+                {
+                    // file has been truncated in the meantime
+                    break;
+                }
+                buffer.flip();
+                if (Statistics.isEnabled())
+                {
+                    lines += NewlineScanner.count(buffer, 0, read);
+                }
+                sink.bytes(info, position, buffer);
+                position += read;
+            }
+            return position;
+        }
+
+        /**
+         * Passes bytes that are not read from the file directly, like the
+         * output of inflating, to the sink.
+         *
+         * @param info the file
+         * @param offset the offset of the bytes in the output
+         * @param bytes the bytes
+         * @param sink where to write to
+         * @throws IOException if the writing fails
+         */
+        private void transfer(FileInfo info, long offset, ByteBuffer bytes, ByteSink sink) throws IOException
+        {
+            long lines = Statistics.isEnabled() ? NewlineScanner.count(bytes, bytes.position(), bytes.limit()) : 0;
+            info.getStatistics().read(bytes.remaining(), lines);
+            if (transcoder != null)
+            {
+                transcoder.transcode(info, offset, bytes, sink);
+            } else
+            {
+                sink.bytes(info, offset, bytes);
+            }
+        }
+    }
+
+    /**
+     * Creates the TailFile that, in follow mode, outputs whatever has been
+     * appended since the last time. It is meant to be created once per file
+     * and reused for every change detected, reading from the channel that the
+     * FileInfo keeps open.
+     *
+     * @param info the file to follow
+     * @param encoding the encoding of the file, null to output the bytes as
+     * they are
+     * @return a TailFile outputting from the current position onwards
+     */
+    public static TailFile createFollower(FileInfo info, Charset encoding)
+    {
+        try
+        {
+            if (info.isGzip())
+            {
+                return new TailFileSkip(info);
+            }
+        } catch (IOException ex)
+        {
+            logger.log(Level.FINE, "Could not check " + info.getFilename() + " for gzip.", ex);
+        }
+        return new TailFileBytes(info, createTransfer(encoding));
+    }
+
+    /**
+     * The output is always in the default encoding of the platform, like
+     * System.out.
+     *
+     * @param encoding the encoding of the file
+     * @return a Transfer, converting the bytes if required
+     */
+    private static Transfer createTransfer(Charset encoding)
+    {
+        return new Transfer(Transcoder.create(encoding, Charset.defaultCharset()));
+    }
+
+    public static TailFile createTailFile(FileInfo info, Long bytes, Long lines, boolean fromBeginning, Charset encoding, Checkpoint checkpoint) throws IOException
+    {
+        Transfer transfer = createTransfer(encoding);
+        if (info.isGzip())
+        {
+            // positions in a checkpoint are of the compressed file
+            if (info.getPosition() != 0)
+            {
+                return new TailFileSkip(info);
+            }
+            if (bytes == null && lines == null)
+            {
+                logger.finest("creating nothing - gzip");
+                return null;
+            }
+            logger.finest("creating TailFileGzip");
+            return new TailFileGzip(info, bytes, lines, fromBeginning, transfer);
+        }
         if (info.getPosition() != 0)
         {
             // we're already at a proper position,
             // means we're already tailing this one.
-            return new TailFileBytes(info, showFilenames);
+            return new TailFileBytes(info, transfer);
+        }
+        Long saved = checkpoint == null ? null : checkpoint.getPosition(info);
+        if (saved != null)
+        {
+            logger.log(Level.FINEST, "creating TailFileBytes - resuming at {0}", saved);
+            info.setPosition(saved);
+            return new TailFileBytes(info, transfer);
         }
         if (fromBeginning)
         {
@@ -64,12 +241,12 @@ public class TailFileFactory
             {
                 logger.finest("creating TailFileBytes - from beginning");
                 info.setPosition(bytes);
-                return new TailFileBytes(info, showFilenames);
+                return new TailFileBytes(info, transfer);
             }
             if (lines != null)
             {
                 logger.finest("creating TailFileLinesFromBeginning");
-                return new TailFileLinesFromBeginning(info, lines, showFilenames);
+                return new TailFileLinesFromBeginning(info, lines, transfer);
             }
             logger.finest("creating nothing - from beginning");
             return null;
@@ -79,15 +256,12 @@ public class TailFileFactory
         {
             logger.finest("creating TailFileBytes from end");
             info.setPosition(info.getSize() - bytes);
-            return new TailFileBytes(info, showFilenames);
+            return new TailFileBytes(info, transfer);
         }
         if (lines != null)
         {
-            logger.log(Level.FINEST, "creating TailFileLinesFromEnd {0} {1}", new Object[]
-            {
-                lines, showFilenames
-            });
-            return new TailFileLinesFromEnd(info, lines, showFilenames);
+            logger.log(Level.FINEST, "creating TailFileLinesFromEnd {0}", lines);
+            return new TailFileLinesFromEnd(info, lines, transfer);
         }
         logger.finest("creating nothing - from end");
         return null;
@@ -98,164 +272,384 @@ public class TailFileFactory
 
         private final FileInfo info;
 
-        private final boolean showFilenames;
+        private final Transfer transfer;
 
-        private TailFileBytes(FileInfo info, boolean showFilenames)
+        private TailFileBytes(FileInfo info, Transfer transfer)
         {
             this.info = info;
-            this.showFilenames = showFilenames;
+            this.transfer = transfer;
         }
 
         @Override
-        public void tail(PrintStream out) throws FileNotFoundException, IOException
+        public void tail(ByteSink sink) throws IOException
         {
-            if (showFilenames)
+            long started = System.nanoTime();
+            sink.begin(info);
+            FileChannel channel = info.getChannel();
+            if (info.isReplaced())
             {
-                out.println("==> " + info.getFilename() + " <==");
+                // finish what was written to the old file, before switching
+                long read = transfer.transfer(info, channel, info.getPosition(), channel.size(), sink);
+                sink.replaced(info);
+                info.reopen(read);
+                channel = info.getChannel();
             }
-            byte[] buffer = new byte[BUFFER_SIZE];
-            if (info.getPosition() > info.getSize())
+            long size = info.getSize();
+            if (info.getPosition() > size)
             {
-                out.println("jtail: " + info.getFilename() + ": file truncated");
+                sink.truncated(info);
                 info.setPosition(0);
             }
-            try (RandomAccessFile reader = new RandomAccessFile(info.getFile().toFile(), "r");)
+            info.setPosition(transfer.transfer(info, channel, info.getPosition(), size, sink));
+            if (info.getLineIndex() != null)
             {
-                reader.seek(info.getPosition());
-                while ((reader.read(buffer))
-                        != -1)
-                {
-                    out.print(new String(buffer));
-                }
-                info.setPosition(reader.getFilePointer());
+                info.getLineIndex().update(info);
             }
+            info.getStatistics().tailed(System.nanoTime() - started);
         }
     }
 
-    private static class TailFileLinesFromBeginning implements TailFile
+    /**
+     * Follows a compressed file, which is not appended to in a way that can
+     * be output, by skipping whatever changed.
+     */
+    private static class TailFileSkip implements TailFile
+    {
+
+        private final FileInfo info;
+
+        private TailFileSkip(FileInfo info)
+        {
+            this.info = info;
+        }
+
+        @Override
+        public void tail(ByteSink sink) throws IOException
+        {
+            if (info.isReplaced())
+            {
+                info.reopen(info.getPosition());
+            }
+            logger.log(Level.FINE, "Not following compressed file {0}.", info.getFilename());
+            info.setPosition(info.getSize());
+        }
+    }
+
+    /**
+     * Outputs part of the uncompressed contents of a gzip file. Uses the
+     * {@link GzipIndex} of the file, if there is one, to know the length and
+     * number of lines up front, and to start inflating at the last access
+     * point before the output. Without one, the file is inflated twice when
+     * counting from the end: once to count, and once to output.
+     */
+    private static class TailFileGzip implements TailFile
     {
 
         private final FileInfo info;
 
-        private final boolean showFilenames;
+        private final Long bytes;
 
-        private long lines;
+        private final Long lines;
+
+        private final boolean fromBeginning;
+
+        private final Transfer transfer;
 
-        private TailFileLinesFromBeginning(FileInfo info, long lines, boolean showFilenames)
+        private TailFileGzip(FileInfo info, Long bytes, Long lines, boolean fromBeginning, Transfer transfer)
         {
             this.info = info;
-            this.showFilenames = showFilenames;
+            this.bytes = bytes;
             this.lines = lines;
+            this.fromBeginning = fromBeginning;
+            this.transfer = transfer;
+        }
+
+        private InputStream open() throws IOException
+        {
+            return new GZIPInputStream(Files.newInputStream(info.getFile()), BUFFER_SIZE);
         }
 
         @Override
-        public void tail(PrintStream out) throws FileNotFoundException, IOException
+        public void tail(ByteSink sink) throws IOException
         {
-            if (showFilenames)
+            sink.begin(info);
+            FileChannel channel = info.getChannel();
+            GzipIndex index = info.getGzipIndex();
+            if (index != null)
             {
-                out.println("==> " + info.getFilename() + " <==");
+                index.update(info);
             }
-            int currentLine = 0;
-            boolean found = false;
-            try (BufferedReader reader = new BufferedReader(new FileReader(info.getFile().toFile())))
+            long skipBytes = 0;
+            long skipNewlines = 0;
+            if (fromBeginning)
+            {
+                skipBytes = bytes != null ? bytes : 0;
+                skipNewlines = lines != null ? Math.max(0, lines - 1) : 0;
+            } else
             {
-                String lineRead;
-                while ((lineRead = reader.readLine()) != null)
+                long length;
+                long newlines;
+                boolean endsWithNewline;
+                if (index != null)
+                {
+                    length = index.getLength();
+                    newlines = index.getNewlines();
+                    endsWithNewline = index.endsWithNewline();
+                } else
                 {
-                    if (currentLine >= lines)
+                    length = 0;
+                    newlines = 0;
+                    endsWithNewline = false;
+                    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    byte[] array = buffer.array();
+                    try (InputStream input = open())
                     {
-                        out.print(lineRead);
-                        found = true;
+                        int read;
+                        while ((read = input.read(array)) != -1)
+                        {
+                            if (read > 0)
+                            {
+                                newlines += NewlineScanner.count(buffer, 0, read);
+                                endsWithNewline = array[read - 1] == '\n';
+                                length += read;
+                            }
+                        }
                     }
-                    currentLine++;
                 }
-                if (!found)
+                if (bytes != null)
+                {
+                    skipBytes = Math.max(0, length - bytes);
+                } else
                 {
-                    out.println("jtail: " + info.getFilename() + ": file truncated");
-                    info.setPosition(0);
+                    // a newline at the very end does not start a new line
+                    long total = newlines + (endsWithNewline || length == 0 ? 0 : 1);
+                    skipNewlines = Math.max(0, total - lines);
                 }
             }
+            GzipIndex.AccessPoint point = null;
+            if (index != null)
+            {
+                point = bytes != null ? index.find(skipBytes, Long.MAX_VALUE) : index.find(Long.MAX_VALUE, skipNewlines);
+            }
+            logger.log(Level.FINEST, "skipping {0} bytes, {1} lines, from {2}", new Object[]
+            {
+                skipBytes, skipNewlines, point == null ? 0 : point.getOffset()
+            });
+            try (InputStream input = point == null ? open() : point.inflate(channel))
+            {
+                long offset = point == null ? 0 : point.getOffset();
+                skipNewlines -= point == null ? 0 : point.getNewlines();
+                copy(input, offset, skipBytes, skipNewlines, sink);
+            }
             info.setPosition(info.getSize());
         }
+
+        /**
+         * Skips up until skipBytes and past skipNewlines newlines, and passes
+         * on the rest.
+         */
+        private void copy(InputStream input, long offset, long skipBytes, long skipNewlines, ByteSink sink) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] array = buffer.array();
+            int read;
+            while ((read = input.read(array)) != -1)
+            {
+                int start = (int) Math.max(0, Math.min(read, skipBytes - offset));
+                if (skipNewlines > 0 && start < read)
+                {
+                    if (NewlineScanner.count(buffer, start, read) < skipNewlines)
+                    {
+                        skipNewlines -= NewlineScanner.count(buffer, start, read);
+                        start = read;
+                    } else
+                    {
+                        while (skipNewlines > 0)
+                        {
+                            if (array[start++] == '\n')
+                            {
+                                skipNewlines--;
+                            }
+                        }
+                    }
+                }
+                if (start < read)
+                {
+                    buffer.limit(read);
+                    buffer.position(start);
+                    transfer.transfer(info, offset + start, buffer.slice(), sink);
+                    buffer.clear();
+                }
+                offset += read;
+            }
+        }
     }
 
-    private static class TailFileLinesFromEnd implements TailFile
+    private static class TailFileLinesFromBeginning implements TailFile
     {
 
         private final FileInfo info;
 
-        private final boolean showFilenames;
-
         private long lines;
 
-        private TailFileLinesFromEnd(FileInfo info, long lines, boolean showFilenames)
+        private final Transfer transfer;
+
+        private TailFileLinesFromBeginning(FileInfo info, long lines, Transfer transfer)
         {
             this.info = info;
-            this.showFilenames = showFilenames;
             this.lines = lines;
+            this.transfer = transfer;
         }
 
+        /**
+         * Outputs the file starting with line number lines, which starts
+         * counting at 1, like -n +K of the unix tail.
+         */
         @Override
-        public void tail(PrintStream out) throws FileNotFoundException, IOException
+        public void tail(ByteSink sink) throws IOException
         {
-            if (showFilenames)
+            sink.begin(info);
+            FileChannel channel = info.getChannel();
+            long end = info.getSize();
+            LineIndex index = info.getLineIndex();
+            long start;
+            if (index != null)
+            {
+                index.update(info);
+                start = index.skipLines(channel, lines - 1, end);
+            } else
             {
-                out.println("==> " + info.getFilename() + " <==");
+                start = NewlineScanner.skipLines(channel, 0, end, lines - 1);
             }
-            int linesRead = 0;
-            byte[] buffer = new byte[BUFFER_SIZE];
-            List<String> totalRead = new LinkedList<>();
-            if (info.getPosition() > info.getSize())
+            logger.log(Level.FINEST, "line {0} starts at {1} of {2}", new Object[]
             {
-                out.println("jtail: " + info.getFilename() + ": file truncated");
-                info.setPosition(0);
+                lines, start, end
+            });
+            info.setPosition(transfer.transfer(info, channel, start, end, sink));
+        }
+    }
+
+    private static class TailFileLinesFromEnd implements TailFile
+    {
+
+        private final FileInfo info;
+
+        private long lines;
+
+        private final Transfer transfer;
+
+        private TailFileLinesFromEnd(FileInfo info, long lines, Transfer transfer)
+        {
+            this.info = info;
+            this.lines = lines;
+            this.transfer = transfer;
+        }
+
+        @Override
+        public void tail(ByteSink sink) throws IOException
+        {
+            sink.begin(info);
+            FileChannel channel = info.getChannel();
+            long end = info.getSize();
+            LineIndex index = info.getLineIndex();
+            long start;
+            if (index != null && lines >= LineIndex.INTERVAL)
+            {
+                // too many lines to go backwards, go forwards from an entry
+                index.update(info);
+                start = findStartOfLastLines(channel, end, lines, index);
+            } else
+            {
+                start = findStartOfLastLines(channel, end, lines);
             }
-            info.setPosition(info.getSize() - BUFFER_SIZE);
-            try (RandomAccessFile reader = new RandomAccessFile(info.getFile().toFile(), "r");)
+            logger.log(Level.FINEST, "last {0} lines start at {1} of {2}", new Object[]
             {
-                do
-                {
-                    reader.seek(info.getPosition());
-                    reader.read(buffer);
-                    String s = new String(buffer);
-                    String[] split = s.split("\n");
-                    logger.log(Level.FINEST, "split: {0}...{1}:{2}", new Object[]
-                    {
-                        split[0], split.length, split[split.length - 1]
-                    });
-                    if (totalRead.isEmpty())
-                    {
-                        linesRead += split.length;
-                        for (int i = 0; i < split.length; i++)
-                        {
-                            totalRead.add(i, split[i]);
-                        }
-                    } else
-                    {
-                        totalRead.set(0, split[split.length - 1] + totalRead.get(0));
-                        for (int i = 0; i < split.length - 1; i++)
-                        {
-                            totalRead.add(i, split[i]);
-                        }
-                    }
-                    if (linesRead > lines)
-                    {
-                        break;
-                    }
-                    info.setPosition(info.getPosition() - BUFFER_SIZE);
-                } while (info.getPosition() != 0);
-                // info.setPosition(reader.getFilePointer());
+                lines, start, end
+            });
+            info.setPosition(transfer.transfer(info, channel, start, end, sink));
+        }
+    }
+
+    /**
+     * Finds the start of the last lines by counting lines from the beginning,
+     * using the number of newlines in the index. Like
+     * {@link #findStartOfLastLines(FileChannel, long, long)}, a newline at the
+     * very end of the file does not start a new line.
+     *
+     * @param channel the file
+     * @param end the size of the file
+     * @param lines the number of lines required
+     * @param index the index, up to date with the file
+     * @return the position of the first byte of the first of the last lines,
+     * or 0 if the file does not contain that many lines
+     * @throws IOException if the file could not be read
+     */
+    private static long findStartOfLastLines(FileChannel channel, long end, long lines, LineIndex index) throws IOException
+    {
+        if (end == 0)
+        {
+            return 0;
+        }
+        ByteBuffer last = ByteBuffer.allocate(1);
+        channel.read(last, end - 1);
+        long total = index.getNewlines() + (last.get(0) == '\n' ? 0 : 1);
+        if (lines >= total)
+        {
+            return 0;
+        }
+        return index.skipLines(channel, total - lines, end);
+    }
 
-                // write it to the output
-                for (long i = lines - 1; i >= 0; i--)
+    /**
+     * Scans backwards through the file, block by block, counting newline
+     * bytes. Nothing is decoded and only one block is kept in memory, so the
+     * cost is bounded by the size of the output, not the size of the file. A
+     * newline at the very end of the file terminates the last line, and does
+     * not start a new (empty) one.
+     *
+     * @param channel the file to scan
+     * @param end the position to scan backwards from, usually the size of the
+     * file
+     * @param lines the number of lines required
+     * @return the position of the first byte of the first of the last lines,
+     * or 0 if the file does not contain that many lines
+     * @throws IOException if the file could not be read
+     */
+    private static long findStartOfLastLines(FileChannel channel, long end, long lines) throws IOException
+    {
+        if (lines <= 0)
+        {
+            return end;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] block = buffer.array();
+        long newlines = 0;
+        long blockEnd = end;
+        while (blockEnd > 0)
+        {
+            long blockStart = Math.max(0, blockEnd - BUFFER_SIZE);
+            buffer.clear();
+            buffer.limit((int) (blockEnd - blockStart));
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer, blockStart + buffer.position()) == -1)
+                {
+                    throw new IOException("File truncated while reading backwards.");
+                }
+            }
+            for (int i = buffer.limit() - 1; i >= 0; i--)
+            {
+                if (block[i] == '\n' && blockStart + i != end - 1)
                 {
-                    if (i <= totalRead.size() - 1)
+                    newlines++;
+                    if (newlines == lines)
                     {
-                        out.println(totalRead.get((int) (totalRead.size() - 1 - i)));
+                        return blockStart + i + 1;
                     }
                 }
-                info.setPosition(info.getSize());
             }
+            blockEnd = blockStart;
         }
+        return 0;
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * What a {@link Tailer} publishes: a line, without its newline, or a chunk
+ * of bytes of a file. The bytes are a copy, so a record can be kept as long
+ * as required.
+ * <img src="../../../images/TailRecord.png"/>
+ *
+ * @startuml
+ * TailRecord : +getFileInfo(): FileInfo
+ * TailRecord : +getOffset(): long
+ * TailRecord : +getBytes(): ByteBuffer
+ * TailRecord : +toString(): String
+ * TailRecord --> FileInfo
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class TailRecord
+{
+
+    private final FileInfo info;
+
+    private final long offset;
+
+    private final byte[] bytes;
+
+    TailRecord(FileInfo info, long offset, ByteBuffer bytes)
+    {
+        this.info = info;
+        this.offset = offset;
+        this.bytes = new byte[bytes.remaining()];
+        bytes.duplicate().get(this.bytes);
+    }
+
+    /**
+     * The file the record is from.
+     *
+     * @return the file
+     */
+    public FileInfo getFileInfo()
+    {
+        return info;
+    }
+
+    /**
+     * The position in the file of the first byte.
+     *
+     * @return the offset
+     * @see ByteSink#bytes(com.tools.jtail.FileInfo, long, java.nio.ByteBuffer)
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * The bytes of the record, in the default encoding of the platform.
+     *
+     * @return a read only buffer
+     */
+    public ByteBuffer getBytes()
+    {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * The bytes of the record, decoded.
+     *
+     * @return the line or chunk as text
+     */
+    @Override
+    public String toString()
+    {
+        return new String(bytes, Charset.defaultCharset());
+    }
+}
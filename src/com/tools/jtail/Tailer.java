@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Follows files from within an application, publishing what is appended to
+ * them as {@link TailRecord}s, either lines or chunks of bytes. For
+ * example:</p>
+ * <pre>
+ * Tailer tailer = new Tailer.Builder()
+ *         .file(new FileInfo("/var/log/app.log"))
+ *         .lines()
+ *         .build();
+ * tailer.subscribe(subscriber);
+ * </pre>
+ * <p>
+ * Every file is followed from its current position. The files are polled on
+ * a thread of the subscription, which only reads while the subscriber has
+ * demand. When it has none, reading pauses where it is, until more is
+ * requested, so at most one buffer of every file is held, however slow the
+ * subscriber is. Files that are replaced or truncated are followed the same
+ * way as with <code>jtail -F</code>.</p>
+ * <p>
+ * The files, and their positions, belong to the tailer, so it allows only a
+ * single subscriber. The publication never completes; it ends when the
+ * subscription is cancelled, or with an error when a file could not be
+ * read.</p>
+ * <img src="../../../images/Tailer.png"/>
+ *
+ * @startuml
+ * Flow.Publisher <|-- Tailer
+ * Tailer : +subscribe(subscriber: Flow.Subscriber)
+ * Tailer +-- Builder
+ * Builder : +file(info: FileInfo): Builder
+ * Builder : +lines(): Builder
+ * Builder : +encoding(encoding: Charset): Builder
+ * Builder : +interval(millis: long): Builder
+ * Builder : +build(): Tailer
+ * Tailer --> "*" FileInfo
+ * Tailer ..> TailRecord
+ * Tailer ..> LineSplitter
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class Tailer implements Flow.Publisher<TailRecord>
+{
+
+    private static final Logger logger = Logger.getLogger(Tailer.class.getName());
+
+    /**
+     * Default number of milliseconds between checking the files, the same as
+     * the default of the command line.
+     */
+    public static final long DEFAULT_INTERVAL = 1000l;
+
+    private final List<FileInfo> infos;
+
+    private final boolean lines;
+
+    private final Charset encoding;
+
+    private final long interval;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * Collects the settings of a {@link Tailer}.
+     */
+    public static class Builder
+    {
+
+        private final List<FileInfo> infos = new ArrayList<>();
+
+        private boolean lines;
+
+        private Charset encoding;
+
+        private long interval = DEFAULT_INTERVAL;
+
+        /**
+         * Adds a file to follow, from its current position onwards.
+         *
+         * @param info the file
+         * @return this builder
+         */
+        public Builder file(FileInfo info)
+        {
+            infos.add(info);
+            return this;
+        }
+
+        /**
+         * Publishes lines, without their newline, instead of chunks. A last
+         * line is only published once its newline has been written, or when
+         * the file is replaced or truncated.
+         *
+         * @return this builder
+         */
+        public Builder lines()
+        {
+            lines = true;
+            return this;
+        }
+
+        /**
+         * The encoding of the files, if they are not in the default encoding
+         * of the platform. Records are always in the default encoding.
+         *
+         * @param encoding the encoding of the files
+         * @return this builder
+         */
+        public Builder encoding(Charset encoding)
+        {
+            this.encoding = encoding;
+            return this;
+        }
+
+        /**
+         * How long to wait before checking the files again, when none of them
+         * changed.
+         *
+         * @param millis the interval in milliseconds, at least
+         * {@link PollingWatcher#MINIMUM_INTERVAL}
+         * @return this builder
+         */
+        public Builder interval(long millis)
+        {
+            this.interval = Math.max(PollingWatcher.MINIMUM_INTERVAL, millis);
+            return this;
+        }
+
+        /**
+         * Creates the tailer.
+         *
+         * @return the tailer
+         * @throws IllegalStateException if no files were added
+         */
+        public Tailer build()
+        {
+            if (infos.isEmpty())
+            {
+                throw new IllegalStateException("No files to tail.");
+            }
+            return new Tailer(this);
+        }
+    }
+
+    /**
+     * Thrown from within a sink, to stop tailing once the subscription has
+     * been cancelled.
+     */
+    private static class CancelledException extends IOException
+    {
+
+        private static final long serialVersionUID = 1L;
+
+        private CancelledException()
+        {
+            super("Subscription cancelled.");
+        }
+    }
+
+    /**
+     * The subscription, and the thread following the files for it.
+     */
+    private class Publication implements Flow.Subscription, Runnable
+    {
+
+        private final Flow.Subscriber<? super TailRecord> subscriber;
+
+        /**
+         * Number of records requested, but not yet published.
+         */
+        private long demand;
+
+        private boolean cancelled;
+
+        /**
+         * Error caused by the subscriber, to be signalled by the thread of
+         * the publication.
+         */
+        private Throwable failure;
+
+        private Publication(Flow.Subscriber<? super TailRecord> subscriber)
+        {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public synchronized void request(long n)
+        {
+            if (n <= 0)
+            {
+                failure = new IllegalArgumentException("Requested " + n + " records, must be positive.");
+                cancelled = true;
+            } else
+            {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void cancel()
+        {
+            cancelled = true;
+            notifyAll();
+        }
+
+        /**
+         * Publishes a record, as soon as there is demand for it.
+         */
+        private void publish(FileInfo info, long offset, ByteBuffer bytes) throws IOException
+        {
+            synchronized (this)
+            {
+                while (demand == 0 && !cancelled)
+                {
+                    try
+                    {
+                        wait();
+                    } catch (InterruptedException ex)
+                    {
+                        throw new InterruptedIOException(ex.getMessage());
+                    }
+                }
+                if (cancelled)
+                {
+                    throw new CancelledException();
+                }
+                demand--;
+            }
+            subscriber.onNext(new TailRecord(info, offset, bytes));
+        }
+
+        /**
+         * Waits for the interval, or until the subscription is cancelled.
+         */
+        private synchronized void pause() throws InterruptedException
+        {
+            if (!cancelled)
+            {
+                wait(interval);
+            }
+        }
+
+        private synchronized boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        private ByteSink createSink()
+        {
+            if (lines)
+            {
+                return new LineSplitter(new LineSink()
+                {
+
+                    @Override
+                    public void line(FileInfo info, long offset, ByteBuffer line) throws IOException
+                    {
+                        publish(info, offset, line);
+                    }
+                });
+            }
+            return new ByteSink()
+            {
+
+                @Override
+                public void begin(FileInfo info)
+                {
+                    // records carry the file
+                }
+
+                @Override
+                public void bytes(FileInfo info, long offset, ByteBuffer bytes) throws IOException
+                {
+                    publish(info, offset, bytes);
+                }
+
+                @Override
+                public void replaced(FileInfo info)
+                {
+                    // the offsets start at 0 again
+                }
+
+                @Override
+                public void truncated(FileInfo info)
+                {
+                    // the offsets start at 0 again
+                }
+            };
+        }
+
+        @Override
+        public void run()
+        {
+            Map<FileInfo, TailFile> followers = new HashMap<>();
+            for (FileInfo info : infos)
+            {
+                followers.put(info, TailFileFactory.createFollower(info, encoding));
+            }
+            ByteSink sink = createSink();
+            try
+            {
+                while (!isCancelled())
+                {
+                    boolean changed = false;
+                    for (FileInfo info : infos)
+                    {
+                        try
+                        {
+                            info.refresh();
+                        } catch (NoSuchFileException ex)
+                        {
+                            logger.log(Level.FINE, "File {0} is missing.", info.getFilename());
+                            continue;
+                        }
+                        if (info.isChanged())
+                        {
+                            followers.get(info).tail(sink);
+                            changed = true;
+                        }
+                    }
+                    if (!changed)
+                    {
+                        pause();
+                    }
+                }
+            } catch (CancelledException ex)
+            {
+                logger.log(Level.FINE, "Subscription cancelled.");
+            } catch (IOException ex)
+            {
+                if (!isCancelled())
+                {
+                    subscriber.onError(ex);
+                }
+                return;
+            } catch (InterruptedException ex)
+            {
+                logger.log(Level.FINE, "Tailer interrupted.");
+                return;
+            } catch (RuntimeException ex)
+            {
+                // the subscriber failed, so it is not to be signalled anymore
+                logger.log(Level.SEVERE, null, ex);
+                return;
+            }
+            Throwable error;
+            synchronized (this)
+            {
+                error = failure;
+            }
+            if (error != null)
+            {
+                subscriber.onError(error);
+            }
+        }
+    }
+
+    private Tailer(Builder builder)
+    {
+        this.infos = new ArrayList<>(builder.infos);
+        this.lines = builder.lines;
+        this.encoding = builder.encoding;
+        this.interval = builder.interval;
+    }
+
+    /**
+     * Starts following the files, on a new thread, once the subscriber
+     * requests records.
+     *
+     * @param subscriber the subscriber, can only be one
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super TailRecord> subscriber)
+    {
+        if (!subscribed.compareAndSet(false, true))
+        {
+            subscriber.onSubscribe(new Flow.Subscription()
+            {
+
+                @Override
+                public void request(long n)
+                {
+                    // nothing to publish
+                }
+
+                @Override
+                public void cancel()
+                {
+                    // nothing to cancel
+                }
+            });
+            subscriber.onError(new IllegalStateException("A Tailer allows only one subscriber."));
+            return;
+        }
+        Publication publication = new Publication(subscriber);
+        subscriber.onSubscribe(publication);
+        Thread thread = new Thread(publication, "jtail tailer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * <p>
+ * Converts the bytes of a file from the encoding of the file to the encoding
+ * of the output, while streaming. The buffers are reused for every transfer.
+ * A character that is split across two reads is carried over to the next
+ * read. A character that is incomplete at the end of the file is not
+ * consumed, so it is read again the next time, when the rest of it has
+ * hopefully been appended.</p>
+ * <img src="../../../images/Transcoder.png"/>
+ *
+ * @startuml
+ * Transcoder : +{static} create(from: Charset, to: Charset): Transcoder
+ * Transcoder : +transfer(info: FileInfo, channel: FileChannel, position: long, end: long, sink: ByteSink): long
+ * Transcoder : +transcode(info: FileInfo, position: long, bytes: ByteBuffer, sink: ByteSink)
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class Transcoder
+{
+
+    /**
+     * Buffer size of 64k.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final CharsetDecoder decoder;
+
+    private final CharsetEncoder encoder;
+
+    private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+    private final ByteBuffer output;
+
+    /**
+     * The newlines among the bytes converted by the last
+     * {@link #transfer(FileInfo, FileChannel, long, long, ByteSink) }, only
+     * counted when statistics are enabled.
+     */
+    private long newlines;
+
+    private Transcoder(Charset from, Charset to)
+    {
+        decoder = from.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        encoder = to.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        output = ByteBuffer.allocate((int) Math.ceil(BUFFER_SIZE * encoder.maxBytesPerChar()));
+    }
+
+    /**
+     * Creates a transcoder, if one is required.
+     *
+     * @param from the encoding of the file, null if unknown
+     * @param to the encoding of the output
+     * @return a transcoder, or null if the bytes can be output as they are,
+     * because both encodings are the same or the encoding of the file is
+     * unknown.
+     */
+    public static Transcoder create(Charset from, Charset to)
+    {
+        if (from == null || from.equals(to))
+        {
+            return null;
+        }
+        return new Transcoder(from, to);
+    }
+
+    /**
+     * Copies the bytes from position up until end of the file to the output,
+     * converting them to the encoding of the output.
+     *
+     * @param info the file, for the sink
+     * @param channel the file to read from
+     * @param position the position to start at
+     * @param end the position to stop at
+     * @param sink where to write to
+     * @return the position up until where the file was converted. Might be
+     * less than end, if the last character is incomplete.
+     * @throws IOException if the reading or writing fails
+     */
+    public long transfer(FileInfo info, FileChannel channel, long position, long end, ByteSink sink) throws IOException
+    {
+        decoder.reset();
+        encoder.reset();
+        input.clear();
+        newlines = 0;
+        long read = position;
+        while (read < end)
+        {
+            if (input.remaining() > end - read)
+            {
+                input.limit(input.position() + (int) (end - read));
+            }
+            int length = channel.read(input, read);
+            input.limit(input.capacity());
+            if (length <= 0)
+            {
+                // file has been truncated in the meantime
+                break;
+            }
+            read += length;
+            input.flip();
+            int before = input.remaining();
+            while (decoder.decode(input, chars, false).isOverflow())
+            {
+                encode(info, position, sink);
+            }
+            encode(info, position, sink);
+            if (Statistics.isEnabled())
+            {
+                // the bytes are at hand anyway
+                newlines += NewlineScanner.count(input, 0, input.position());
+            }
+            position += before - input.remaining();
+            // an incomplete character is carried over to the next read
+            input.compact();
+        }
+        return position;
+    }
+
+    /**
+     * @return the newlines among the bytes converted by the last
+     * {@link #transfer(FileInfo, FileChannel, long, long, ByteSink) }, 0 if
+     * statistics are not enabled
+     */
+    public long getNewlines()
+    {
+        return newlines;
+    }
+
+    /**
+     * Converts bytes that are not read from the file directly, like the
+     * output of inflating a gzip file. Consecutive calls form one stream, an
+     * incomplete character at the end of the bytes is carried over to the
+     * next call.
+     *
+     * @param info the file, for the sink
+     * @param position the offset of the bytes in the stream
+     * @param bytes the bytes, from position to limit, which are all consumed
+     * @param sink where to write to
+     * @throws IOException if the writing fails
+     */
+    public void transcode(FileInfo info, long position, ByteBuffer bytes, ByteSink sink) throws IOException
+    {
+        ByteBuffer remaining = bytes.duplicate();
+        while (remaining.hasRemaining())
+        {
+            int length = Math.min(input.remaining(), remaining.remaining());
+            ByteBuffer part = remaining.duplicate();
+            part.limit(part.position() + length);
+            input.put(part);
+            remaining.position(remaining.position() + length);
+            input.flip();
+            while (decoder.decode(input, chars, false).isOverflow())
+            {
+                encode(info, position, sink);
+            }
+            encode(info, position, sink);
+            position += length;
+            input.compact();
+        }
+        bytes.position(bytes.limit());
+    }
+
+    /**
+     * Encodes the decoded characters, and writes them.
+     */
+    private void encode(FileInfo info, long position, ByteSink sink) throws IOException
+    {
+        chars.flip();
+        CoderResult result;
+        do
+        {
+            result = encoder.encode(chars, output, false);
+            output.flip();
+            sink.bytes(info, position, output);
+            output.clear();
+        } while (result.isOverflow());
+        chars.compact();
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * A directory in which every file with a name matching a glob pattern is
+ * tailed, including files that are created later on. If recursive, the same
+ * goes for all its subdirectories, including subdirectories created later
+ * on.</p>
+ * <p>
+ * Created from a command line argument that is a directory, like
+ * <code>jtail -f --recursive /var/log/containers</code>, or that has a glob
+ * pattern in its file name, like <code>jtail -f '/var/log/app/*.log'</code>.
+ * The pattern only applies to the file name, not to the directories.</p>
+ * <img src="../../../images/WatchedDirectory.png"/>
+ *
+ * @startuml
+ * WatchedDirectory : +{static} isPattern(filename: String): boolean
+ * WatchedDirectory : +{static} create(filename: String, glob: String, recursive: boolean): WatchedDirectory
+ * WatchedDirectory : +getDirectory(): Path
+ * WatchedDirectory : +resolve(name: Path): Path
+ * WatchedDirectory : +isRecursive(): boolean
+ * WatchedDirectory : +matches(file: Path): boolean
+ * WatchedDirectory : +subdirectory(directory: Path): WatchedDirectory
+ * WatchedDirectory : +list(): List<Path>
+ * WatchedDirectory : +listSubdirectories(): List<WatchedDirectory>
+ * WatchedDirectory : +listAll(): List<Path>
+ * @enduml
+ *
+ * @author maartenl
+ */
+public class WatchedDirectory
+{
+
+    private static final Logger logger = Logger.getLogger(WatchedDirectory.class.getName());
+
+    /**
+     * Pattern used for a directory, if no --glob is provided.
+     */
+    public static final String ALL_FILES = "*";
+
+    /**
+     * The directory as provided, used for the names of the files.
+     */
+    private final Path path;
+
+    /**
+     * The absolute directory, used to identify it.
+     */
+    private final Path directory;
+
+    private final String glob;
+
+    private final PathMatcher matcher;
+
+    private final boolean recursive;
+
+    private WatchedDirectory(Path directory, String glob, boolean recursive)
+    {
+        this.path = directory;
+        this.directory = directory.toAbsolutePath().normalize();
+        this.glob = glob;
+        this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        this.recursive = recursive;
+    }
+
+    /**
+     * Indicates that a filename on the command line is not a file, but a
+     * directory or a file name pattern.
+     *
+     * @param filename the filename on the command line
+     * @return true if it is a directory, or if it does not exist and its file
+     * name contains glob characters.
+     */
+    public static boolean isPattern(String filename)
+    {
+        Path path = Paths.get(filename);
+        if (Files.isDirectory(path))
+        {
+            return true;
+        }
+        Path name = path.getFileName();
+        return name != null && !Files.exists(path) && name.toString().matches(".*[*?\\[{].*");
+    }
+
+    /**
+     * Creates the watched directory from a filename on the command line that
+     * is a pattern.
+     *
+     * @param filename a directory, or a file name pattern
+     * @param glob the pattern for the files in a directory, ignored if the
+     * filename is a pattern itself
+     * @param recursive include subdirectories
+     * @return the watched directory
+     * @see #isPattern(java.lang.String)
+     */
+    public static WatchedDirectory create(String filename, String glob, boolean recursive)
+    {
+        Path path = Paths.get(filename);
+        if (Files.isDirectory(path))
+        {
+            return new WatchedDirectory(path, glob, recursive);
+        }
+        Path parent = path.getParent() == null ? Paths.get("") : path.getParent();
+        return new WatchedDirectory(parent, path.getFileName().toString(), recursive);
+    }
+
+    /**
+     * The directory, as absolute and normalized path.
+     *
+     * @return the directory
+     */
+    public Path getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * A file in this directory, named relative to the directory as provided
+     * on the command line.
+     *
+     * @param name the name of the file
+     * @return the file
+     */
+    public Path resolve(Path name)
+    {
+        return path.resolve(name);
+    }
+
+    public boolean isRecursive()
+    {
+        return recursive;
+    }
+
+    /**
+     * Indicates that the file is to be tailed. Only regular files are, so
+     * directories, sockets and the like are skipped, as well as the sidecar
+     * files of jtail itself.
+     *
+     * @param file a file in this directory
+     * @return true if the file name matches the pattern
+     */
+    public boolean matches(Path file)
+    {
+        return matcher.matches(file.getFileName())
+                && !file.getFileName().toString().endsWith(LineIndex.EXTENSION)
+                && Files.isRegularFile(file);
+    }
+
+    /**
+     * The same pattern, applied to a subdirectory.
+     *
+     * @param subdirectory a directory in this directory
+     * @return the watched subdirectory
+     */
+    public WatchedDirectory subdirectory(Path subdirectory)
+    {
+        return new WatchedDirectory(subdirectory, glob, recursive);
+    }
+
+    /**
+     * Lists the files in this directory that match, not including those in
+     * subdirectories.
+     *
+     * @return the matching files, sorted by name
+     * @throws IOException if the directory could not be read
+     */
+    public List<Path> list() throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path))
+        {
+            for (Path file : stream)
+            {
+                if (matches(file))
+                {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Lists the subdirectories, if recursive.
+     *
+     * @return the subdirectories, sorted by name, empty if not recursive.
+     * @throws IOException if the directory could not be read
+     */
+    public List<WatchedDirectory> listSubdirectories() throws IOException
+    {
+        List<WatchedDirectory> subdirectories = new ArrayList<>();
+        if (!recursive)
+        {
+            return subdirectories;
+        }
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path))
+        {
+            for (Path subdirectory : stream)
+            {
+                if (Files.isDirectory(subdirectory))
+                {
+                    paths.add(subdirectory);
+                }
+            }
+        }
+        Collections.sort(paths);
+        for (Path subdirectory : paths)
+        {
+            subdirectories.add(subdirectory(subdirectory));
+        }
+        logger.log(Level.FINEST, "{0} has {1} subdirectories", new Object[]
+        {
+            directory, subdirectories.size()
+        });
+        return subdirectories;
+    }
+
+    /**
+     * Lists the files that match, in this directory and, if recursive, all of
+     * its subdirectories.
+     *
+     * @return the matching files, in depth first order
+     * @throws IOException if a directory could not be read
+     */
+    public List<Path> listAll() throws IOException
+    {
+        List<Path> files = list();
+        for (WatchedDirectory subdirectory : listSubdirectories())
+        {
+            files.addAll(subdirectory.listAll());
+        }
+        return files;
+    }
+
+    @Override
+    public String toString()
+    {
+        return path.resolve(glob) + (recursive ? " (recursive)" : "");
+    }
+}
@@ -26,6 +26,7 @@ import java.io.IOException;
  *
  * @startuml interface Watcher abstract class FileSystemWatcher abstract class
  * PollingWatcher Watcher <|-- FileSystemWatcher Watcher <|-- PollingWatcher
+ * Watcher --> WatchedDirectory
  * @enduml
  *
  * @
@@ -36,8 +37,50 @@ public interface Watcher
 
     public void eventDetected(FileInfo info) throws IOException;
 
+    /**
+     * Called when all detected changes have been handled, and the watcher is
+     * about to wait for new ones. While nothing changes, it is called again
+     * about every sleep interval.
+     *
+     * @throws IOException if, for example, writing the output fails
+     */
+    public void idle() throws IOException;
+
+    /**
+     * Watches until there are no more files to watch, or until
+     * {@link #stop() }.
+     *
+     * @throws IOException if, for example, a file could not be read
+     */
     public void startWatching() throws IOException;
 
+    /**
+     * Makes {@link #startWatching() } return, as soon as it has handled the
+     * changes detected so far, waking it up if it is waiting. Can be called
+     * from any thread, also before watching started.
+     */
+    public void stop();
+
     public void watch(FileInfo fileInfo) throws IOException;
 
+    /**
+     * Watches a directory for new files that match. Files in it that are not
+     * watched yet when watching starts, count as new as well.
+     *
+     * @param directory the directory, and the pattern of the files
+     * @throws IOException if the directory could not be watched
+     */
+    public void watch(WatchedDirectory directory) throws IOException;
+
+    /**
+     * Called when a new file has been found in a watched directory. It is
+     * watched from then on, starting at position 0, or for a followed file
+     * that was renamed, where it left off. {@link #eventDetected(FileInfo) }
+     * follows if there is something to read.
+     *
+     * @param info the new file
+     * @throws IOException if, for example, writing the output fails
+     */
+    public void discovered(FileInfo info) throws IOException;
+
 }
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that {@link GzipInflater} outputs the same as java.util.zip, from
+ * the start of a file as well as from every access point of a
+ * {@link GzipIndex}.
+ *
+ * @author maartenl
+ */
+public class GzipInflaterTest
+{
+
+    private static final int STORED = 0;
+
+    private static final int FIXED = 1;
+
+    private static final int DYNAMIC = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Lines that look like a log, random enough for deflate to use dynamic
+     * blocks.
+     */
+    private static byte[] log(int size, long seed)
+    {
+        Random random = new Random(seed);
+        String[] levels =
+        {
+            "INFO", "DEBUG", "WARN", "ERROR"
+        };
+        StringBuilder builder = new StringBuilder(size + 100);
+        while (builder.length() < size)
+        {
+            builder.append("2014-03-").append(10 + random.nextInt(20)).append(' ')
+                    .append(levels[random.nextInt(levels.length)]).append(" request ")
+                    .append(random.nextInt(100000)).append(" took ").append(random.nextInt(1000)).append("ms\n");
+        }
+        return builder.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] gzip(byte[] bytes, final int level) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)
+        {
+
+
+            {
+                def.setLevel(level);
+            }
+        })
+        {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the type of the first deflate block of a gzip member without
+     * optional header fields, as GZIPOutputStream writes it
+     */
+    private static int firstBlockType(byte[] member)
+    {
+        return (member[10] >> 1) & 3;
+    }
+
+    private static byte[] concat(byte[]... parts)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+        {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private Path write(byte[] bytes) throws IOException
+    {
+        Path file = folder.newFile().toPath();
+        Files.write(file, bytes);
+        return file;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[5000];
+        int read;
+        while ((read = in.read(buffer, 0, buffer.length)) != -1)
+        {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertInflates(byte[] expected, Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            assertArrayEquals(expected, readAll(new GzipInflater(channel)));
+        }
+    }
+
+    private static long newlines(byte[] bytes, int to)
+    {
+        long count = 0;
+        for (int i = 0; i < to; i++)
+        {
+            if (bytes[i] == '\n')
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return all access points, from the first to the last
+     */
+    private static List<GzipIndex.AccessPoint> points(GzipIndex index)
+    {
+        List<GzipIndex.AccessPoint> points = new ArrayList<>();
+        GzipIndex.AccessPoint point = index.find(Long.MAX_VALUE, Long.MAX_VALUE);
+        while (point != null)
+        {
+            points.add(0, point);
+            point = index.find(point.getOffset() - 1, Long.MAX_VALUE);
+        }
+        return points;
+    }
+
+    private static GzipIndex index(Path file) throws IOException
+    {
+        GzipIndex index = GzipIndex.open(file);
+        try (FileInfo info = new FileInfo(file.toString()))
+        {
+            index.update(info);
+        }
+        index.close();
+        return index;
+    }
+
+    /**
+     * Resumes inflating at every access point, and compares the rest of the
+     * output.
+     */
+    private static void assertResumes(byte[] expected, Path file, GzipIndex index, int minimumPoints) throws IOException
+    {
+        assertEquals(expected.length, index.getLength());
+        assertEquals(newlines(expected, expected.length), index.getNewlines());
+        assertEquals(expected[expected.length - 1] == '\n', index.endsWithNewline());
+        List<GzipIndex.AccessPoint> points = points(index);
+        assertTrue(points.size() + " access points", points.size() >= minimumPoints);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            for (GzipIndex.AccessPoint point : points)
+            {
+                int offset = (int) point.getOffset();
+                assertEquals(newlines(expected, offset), point.getNewlines());
+                assertArrayEquals("from " + offset, Arrays.copyOfRange(expected, offset, expected.length),
+                        readAll(point.inflate(channel)));
+            }
+        }
+    }
+
+    private static void corrupt(Path sidecar, int position, byte[] bytes) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(sidecar, StandardOpenOption.WRITE))
+        {
+            channel.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+
+    @Test
+    public void testStoredBlocks() throws IOException
+    {
+        byte[] expected = log(200000, 1);
+        byte[] member = gzip(expected, Deflater.NO_COMPRESSION);
+        assertEquals(STORED, firstBlockType(member));
+        assertInflates(expected, write(member));
+    }
+
+    @Test
+    public void testFixedBlocks() throws IOException
+    {
+        byte[] expected = "hello hello hello\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] member = gzip(expected, Deflater.DEFAULT_COMPRESSION);
+        assertEquals(FIXED, firstBlockType(member));
+        assertInflates(expected, write(member));
+    }
+
+    @Test
+    public void testDynamicBlocks() throws IOException
+    {
+        byte[] expected = log(500000, 2);
+        byte[] member = gzip(expected, Deflater.BEST_COMPRESSION);
+        assertEquals(DYNAMIC, firstBlockType(member));
+        assertInflates(expected, write(member));
+    }
+
+    @Test
+    public void testEmpty() throws IOException
+    {
+        assertInflates(new byte[0], write(gzip(new byte[0], Deflater.DEFAULT_COMPRESSION)));
+    }
+
+    @Test
+    public void testMembers() throws IOException
+    {
+        byte[] first = log(100000, 3);
+        byte[] second = "hello\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] third = log(100000, 4);
+        assertInflates(concat(first, second, third),
+                write(concat(gzip(first, Deflater.DEFAULT_COMPRESSION), gzip(second, Deflater.DEFAULT_COMPRESSION),
+                                gzip(third, Deflater.NO_COMPRESSION))));
+    }
+
+    /**
+     * Access points in dynamic and stored blocks, across members, both right
+     * after building the index and after reading it back from the sidecar.
+     */
+    @Test
+    public void testResumeAtAccessPoints() throws IOException
+    {
+        byte[] first = log(3 * GzipIndex.SPAN, 5);
+        byte[] second = log(2 * GzipIndex.SPAN + 12345, 6);
+        byte[] third = "last line without newline".getBytes(StandardCharsets.US_ASCII);
+        byte[] expected = concat(first, second, third);
+        Path file = write(concat(gzip(first, Deflater.DEFAULT_COMPRESSION), gzip(second, Deflater.NO_COMPRESSION),
+                gzip(third, Deflater.DEFAULT_COMPRESSION)));
+        assertInflates(expected, file);
+        assertResumes(expected, file, index(file), 4);
+        assertTrue(Files.exists(Paths.get(file + LineIndex.EXTENSION)));
+        assertResumes(expected, file, index(file), 4);
+    }
+
+    /**
+     * A sidecar that cannot be read is ignored, and the index is built
+     * again.
+     */
+    @Test
+    public void testCorruptSidecar() throws IOException
+    {
+        byte[] expected = log(3 * GzipIndex.SPAN, 7);
+        Path file = write(gzip(expected, Deflater.DEFAULT_COMPRESSION));
+        Path sidecar = Paths.get(file + LineIndex.EXTENSION);
+        index(file);
+        byte[] original = Files.readAllBytes(sidecar);
+
+        // truncated in the middle of the access points
+        Files.write(sidecar, Arrays.copyOf(original, original.length / 2));
+        assertResumes(expected, file, index(file), 2);
+
+        // far more access points than there are
+        Files.write(sidecar, original);
+        corrupt(sidecar, GzipIndex.HEADER_SIZE - 8, ByteBuffer.allocate(8).putLong(Long.MAX_VALUE).array());
+        assertResumes(expected, file, index(file), 2);
+
+        // a negative window length
+        Files.write(sidecar, original);
+        corrupt(sidecar, GzipIndex.HEADER_SIZE + 28, ByteBuffer.allocate(4).putInt(-1).array());
+        assertResumes(expected, file, index(file), 2);
+
+        // a compressed window that does not inflate
+        Files.write(sidecar, original);
+        corrupt(sidecar, GzipIndex.HEADER_SIZE + 36, new byte[]
+        {
+            (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff
+        });
+        assertResumes(expected, file, index(file), 2);
+
+        // not a sidecar at all
+        Files.write(sidecar, "garbage".getBytes(StandardCharsets.US_ASCII));
+        assertResumes(expected, file, index(file), 2);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 maartenl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tools.jtail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that the literal prefilter of {@link LineFilter} never decides
+ * differently than {@link java.util.regex.Matcher#find() } would.
+ *
+ * @author maartenl
+ */
+public class LineFilterTest
+{
+
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+    /**
+     * Regular expressions with escapes that take an operand, or that are
+     * back references, none of which may end up in the literal.
+     */
+    private static final String[] ESCAPES =
+    {
+        "\\x41BC", "\\x{41}BC", "\\u0041BC", "\\0101BC", "\\cAxyz", "\\p{Lu}BC", "\\P{Lu}BC",
+        "\\N{LATIN CAPITAL LETTER A}BC", "(A)\\1BC", "(A)\\12", "x\\x41BC"
+    };
+
+    private static final String[] LINES =
+    {
+        "ABC", "xABC", "x41BC", "AABC", "\u0001xyz", "cAxyz", "Lu}BC", "aBC", "AA2", "AA12", "", "BC"
+    };
+
+    private static ByteBuffer bytes(String line)
+    {
+        return ByteBuffer.wrap(line.getBytes(UTF8));
+    }
+
+    /**
+     * Whatever the literal is, every match has to contain it.
+     */
+    private static void assertLiteralInMatches(String regex)
+    {
+        String literal = LineFilter.literal(regex);
+        if (literal == null)
+        {
+            return;
+        }
+        Pattern pattern = Pattern.compile(regex);
+        for (String line : LINES)
+        {
+            if (pattern.matcher(line).find())
+            {
+                assertTrue(regex + " matches " + line + ", but literal is " + literal, line.contains(literal));
+            }
+        }
+    }
+
+    @Test
+    public void testLiteralOfEscapesWithOperand()
+    {
+        for (String regex : ESCAPES)
+        {
+            assertNull(regex, LineFilter.literal(regex));
+        }
+    }
+
+    @Test
+    public void testLiteral()
+    {
+        assertEquals("timeout", LineFilter.literal("ERROR.*timeout"));
+        assertEquals("foo.bar", LineFilter.literal("foo\\.bar"));
+        assertEquals("BC", LineFilter.literal("\\dBC"));
+        assertEquals("ERROR", LineFilter.literal("ERROR"));
+        assertNull(LineFilter.literal("ERROR|WARN"));
+        for (String regex : ESCAPES)
+        {
+            assertLiteralInMatches(regex);
+        }
+    }
+
+    @Test
+    public void testGrepLikeFind()
+    {
+        for (String regex : ESCAPES)
+        {
+            Pattern pattern = Pattern.compile(regex);
+            LineFilter filter = new LineFilter(pattern, null, UTF8);
+            for (String line : LINES)
+            {
+                assertEquals(regex + " on " + line, pattern.matcher(line).find(), filter.accept(bytes(line)));
+            }
+        }
+    }
+
+    @Test
+    public void testExcludeLikeFind()
+    {
+        for (String regex : ESCAPES)
+        {
+            Pattern pattern = Pattern.compile(regex);
+            LineFilter filter = new LineFilter(null, pattern, UTF8);
+            for (String line : LINES)
+            {
+                assertEquals(regex + " on " + line, !pattern.matcher(line).find(), filter.accept(bytes(line)));
+            }
+        }
+    }
+}